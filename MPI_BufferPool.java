@@ -0,0 +1,149 @@
+// A pool of the buffers used by eager sends, for one datatype.  An eager send
+// copies its data into a buffer taken from here, and the buffer is given back
+// when the message has been received, so a steady stream of sends doesn't
+// allocate a new array for each one.
+//
+// Buffers are kept in power-of-two size classes, so a buffer for 'count'
+// elements has between count and 2*count entries.  Each class holds a fixed
+// number of free buffers in an array of slots, taken and given back with
+// compare-and-set, so the pool never locks or allocates for itself.  Very
+// large buffers are not kept, so the pool doesn't hold on to a lot of memory.
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class MPI_BufferPool
+{
+    // The largest size class that is pooled (2^20 elements)
+    static final int MAX_CLASS = 20;
+
+    // How many free buffers are kept for each size class
+    static final int SLOTS_PER_CLASS = 16;
+
+    private MPI_DataConnection.MPI_Datatype _datatype;
+
+    // The free buffers, SLOTS_PER_CLASS slots for each size class
+    private AtomicReferenceArray<Object> _free;
+
+    // Metrics: buffers found in the pool, buffers that had to be allocated,
+    // buffers given back, and buffers given back that there was no room for
+    private AtomicLong _hits, _misses, _returns, _dropped;
+
+    public MPI_BufferPool(MPI_DataConnection.MPI_Datatype datatype)
+    {
+        _datatype = datatype;
+        _free = new AtomicReferenceArray<Object>((MAX_CLASS + 1) * SLOTS_PER_CLASS);
+        _hits = new AtomicLong(0);
+        _misses = new AtomicLong(0);
+        _returns = new AtomicLong(0);
+        _dropped = new AtomicLong(0);
+    }
+
+    // The size class of a buffer for 'count' elements (the smallest power of
+    // two that holds them)
+    static int sizeClass(int count)
+    {
+        if (count <= 1)
+        {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(count - 1);
+    }
+
+    // Take a buffer with room for at least 'count' elements.  This is an int[],
+    // double[] or String[], depending on the datatype.
+    public Object take(int count)
+    {
+        int sizeClass = sizeClass(count);
+        if (sizeClass <= MAX_CLASS)
+        {
+            int first = sizeClass * SLOTS_PER_CLASS;
+            for (int i = first ; i < first + SLOTS_PER_CLASS ; i++)
+            {
+                Object buffer = _free.get(i);
+                if (buffer != null && _free.compareAndSet(i, buffer, null))
+                {
+                    _hits.incrementAndGet();
+                    return buffer;
+                }
+            }
+        }
+        _misses.incrementAndGet();
+        return allocate((sizeClass <= MAX_CLASS) ? (1 << sizeClass) : count);
+    }
+
+    // Give back a buffer from 'take', of which 'count' elements were used
+    public void give(Object buffer, int count)
+    {
+        int len = length(buffer);
+        int sizeClass = sizeClass(len);
+        if (sizeClass > MAX_CLASS || (1 << sizeClass) != len)
+        {
+            return;
+        }
+        _returns.incrementAndGet();
+
+        // Don't let a pooled buffer keep the strings alive
+        if (_datatype == MPI_DataConnection.MPI_Datatype.MPI_DT_STRING)
+        {
+            String strings[] = (String []) buffer;
+            for (int i = 0 ; i < count ; i++)
+            {
+                strings[i] = null;
+            }
+        }
+
+        int first = sizeClass * SLOTS_PER_CLASS;
+        for (int i = first ; i < first + SLOTS_PER_CLASS ; i++)
+        {
+            if (_free.get(i) == null && _free.compareAndSet(i, null, buffer))
+            {
+                return;
+            }
+        }
+        _dropped.incrementAndGet();
+    }
+
+    private Object allocate(int len)
+    {
+        switch (_datatype)
+        {
+        case MPI_DT_INT:    return new int[len];
+        case MPI_DT_DOUBLE: return new double[len];
+        case MPI_DT_STRING: return new String[len];
+        }
+        return null;
+    }
+
+    private int length(Object buffer)
+    {
+        switch (_datatype)
+        {
+        case MPI_DT_INT:    return ((int []) buffer).length;
+        case MPI_DT_DOUBLE: return ((double []) buffer).length;
+        case MPI_DT_STRING: return ((String []) buffer).length;
+        }
+        return 0;
+    }
+
+    public long hits() { return _hits.get(); }
+    public long misses() { return _misses.get(); }
+    public long returns() { return _returns.get(); }
+    public long dropped() { return _dropped.get(); }
+
+    // The fraction of 'take' calls that found a buffer in the pool
+    public double hitRate()
+    {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return (total == 0) ? 0.0 : (double) hits / total;
+    }
+
+    public void status()
+    {
+        System.out.println("  " + MPI_DataConnection.datatypeString(_datatype) + " buffer pool: "
+                + _hits.get() + " hits, " + _misses.get() + " misses ("
+                + Math.round(100.0 * hitRate()) + "% hit rate), "
+                + _returns.get() + " returned, " + _dropped.get() + " dropped");
+    }
+}
@@ -0,0 +1,76 @@
+// A call seen by the interceptors (see MPI_Interceptor): which process made
+// it, what it is, its arguments, and (once it has returned) how long it took.
+//
+// The kind is one of MPI_Trace's (a send, receive, wait, test, probe, start
+// of a persistent request, or a collective's type), with
+// MPI_Trace.NONBLOCKING for the calls that only start the operation (and
+// MPI_Iprobe).  The peer is the rank in the communicator of the destination
+// (or source) of a message or probe, or the root of a collective, or -1.  The
+// request is the one a call started, tested or waited for; MPI_Waitany has
+// none.
+
+public class MPI_Call
+{
+    private MPI_Proc _proc;
+    private int _kind;
+    private MPI_DataConnection.MPI_Datatype _datatype;
+    private int _count;
+    private int _peer;
+    private int _tag;
+    private MPI_Comm _comm;
+    private MPI_Request _request;
+
+    // The interceptors this call was started with, so the same ones see it end
+    private MPI_Interceptor _interceptors[];
+
+    private long _start, _end;
+
+    MPI_Call(MPI_Proc proc, int kind, MPI_DataConnection.MPI_Datatype datatype, int count, int peer, int tag,
+             MPI_Comm comm, MPI_Request request, MPI_Interceptor interceptors[])
+    {
+        _proc = proc;
+        _kind = kind;
+        _datatype = datatype;
+        _count = count;
+        _peer = peer;
+        _tag = tag;
+        _comm = comm;
+        _request = request;
+        _interceptors = interceptors;
+        _start = _end = 0;
+    }
+
+    public MPI_Proc proc() { return _proc; }
+    public int rank() { return _proc.rank(); }
+    public int kind() { return _kind; }
+    public String name() { return MPI_Trace.kindName(_kind); }
+    public boolean nonblocking() { return (_kind & MPI_Trace.NONBLOCKING) != 0; }
+    public boolean collective() { return (_kind & ~MPI_Trace.NONBLOCKING) >= MPI_Trace.KIND_COLLECTIVE; }
+
+    // The datatype is null if the call has no data
+    public MPI_DataConnection.MPI_Datatype datatype() { return _datatype; }
+    public int count() { return _count; }
+    public int peer() { return _peer; }
+    public int tag() { return _tag; }
+    public MPI_Comm comm() { return _comm; }
+
+    // The request of a non-blocking call (set once it has been made), or the
+    // request being waited for
+    public MPI_Request request() { return _request; }
+    void setRequest(MPI_Request request) { _request = request; }
+
+    MPI_Interceptor[] interceptors() { return _interceptors; }
+
+    // Times from System.nanoTime
+    public long startNanos() { return _start; }
+    public long endNanos() { return _end; }
+    public long elapsedNanos() { return _end - _start; }
+    void started() { _start = System.nanoTime(); }
+    void finished() { _end = System.nanoTime(); }
+
+    public String toString()
+    {
+        return name() + "(rank " + rank() + ", peer " + _peer + ", tag " + _tag + ", count " + _count
+               + ((_datatype == null) ? "" : " " + MPI_DataConnection.datatypeString(_datatype)) + ")";
+    }
+}
@@ -4,50 +4,147 @@
 //  Barrier
 //  Bcast
 //  Reduce
-//  Scatter
-//  Gather
+//  Scatter and Scatterv
+//  Gather and Gatherv
 //  ReduceAll
-//  GatherAll
+//  GatherAll and GatherAllv
+//  Alltoall and Alltoallv
+//  Reduce_scatter
+//  Scan and Exscan
+//  Comm_split (and Comm_dup, which is a split)
 //
-// The world can have at most one collective at a time.
-// When the collective is created, it is added to the world.
-// As each proc joins the collective, it adds to the list of
-// who is there, or at least it updates the count.
-// When the last proc joins the collective, it fires, does its
-// work, and releases all of the procs.
+// A collective runs over the procs of a communicator.  Each proc
+// numbers the collectives it starts on a communicator, and the world
+// keeps the collectives in flight keyed by the communicator's context
+// and that number, so collectives on different communicators can run
+// at the same time.  The first proc to start a collective adds it to
+// the world, and as each proc joins the collective, it updates the count.
+// When the last proc joins the collective, it is full, and every
+// proc then does its own part of the work, on its own thread: in a
+// Bcast each proc copies from its parent in a binomial tree, in a
+// Reduce each proc combines its children's partial results, in a
+// Scatter or Gather each proc copies its own block, and so on.
+// When the last proc has finished its part, all of them are released.
 //
-// If there is already a collective, an error message is generated.
+// There is no world-wide lock: the counts are atomic, and a proc that
+// has to wait (for the others to join, for its parent in a tree, or for
+// everybody to finish) parks until the proc it waits for unparks it.
+//
+// The buffers and the waiting thread of each proc are kept here, rather
+// than on the proc, so a proc can have a non-blocking collective in flight
+// (with its part done by a thread of its own) while it goes on to others.
+//
+// If the collective another proc started is of a different type, an
+// error message is generated.
 // If the only processes not in the collective are blocked, we have
 // a problem, so check for this.
 // More interesting: if proc A is blocked waiting for proc B, and
 // proc B joins a collective, report the error, as B will become blocking,
 // so it can never release A, and A can never join the collective.
 
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
 public class MPI_Collective
 {
-    public enum MPI_CollectiveType { INIT, FINALIZE, BARRIER, BCAST, REDUCE, SCATTER, GATHER, REDUCEALL, GATHERALL };
+    public enum MPI_CollectiveType { INIT, FINALIZE, BARRIER, BCAST, REDUCE, SCATTER, GATHER, REDUCEALL, GATHERALL, ALLTOALL, ALLTOALLV,
+                                     SCATTERV, GATHERV, GATHERALLV, REDUCE_SCATTER, SCAN, EXSCAN, COMM_SPLIT };
+
+    // The layout of a process' blocks, for the collectives where each block
+    // has its own size: the count and displacement (offset in the array) of
+    // the block for each other process, in the source and in the destination
+    static class Blocks
+    {
+        int _sendCounts[];
+        int _sendDispls[];
+        int _recvCounts[];
+        int _recvDispls[];
+
+        Blocks(int sendCounts[], int sendDispls[], int recvCounts[], int recvDispls[])
+        {
+            _sendCounts = sendCounts;
+            _sendDispls = sendDispls;
+            _recvCounts = recvCounts;
+            _recvDispls = recvDispls;
+        }
+    }
 
     MPI_CollectiveType _type;
 
     MPI_World _world;
 
-    // How many have yet to join in:
-    int _numLeft;
+    // How many have yet to join in, and how many have yet to finish their part:
+    AtomicInteger _numLeft;
+    AtomicInteger _numWorking;
+
+    // Set by the last process to join, and by the last process to finish:
+    volatile boolean _full;
+    volatile boolean _fired;
+
+    // The stage each process has reached (see below), and the partial results
+    // of a reduction, published by setting the stage:
+    static final int STAGE_REDUCED = 1;
+    static final int STAGE_RESULT = 2;
+    AtomicIntegerArray _stage;
+    MPI_DataConnection _partial[];
+
+    // For an Allreduce done in slices: how many processes have yet to reduce
+    // their slice, and set when they all have
+    AtomicInteger _numSlicing;
+    volatile boolean _sliced;
+
+    // Each process' buffers (its source and destination), and the thread doing
+    // its part.  They are set before the process joins, so they are seen by
+    // all of the others once the collective is full.
+    MPI_DataConnection _conns[];
+    MPI_DataConnection _conns2[];
+    Blocks _blocks[];
+    AtomicReferenceArray<Thread> _waiters;
+
+    // The communicators made by a split, by rank in the old communicator
+    MPI_Comm _newComms[];
 
-    // Optional:
-    MPI_Proc _root;
-    MPI_Proc.MPI_ReduceOp _op;
+    // The communicator the collective runs over, its size, and the collective's
+    // key in the world (the communicator's context and sequence number)
+    MPI_Comm _comm;
+    int _size;
+    long _key;
 
-    MPI_Collective(MPI_World world, MPI_CollectiveType type, MPI_Proc.MPI_ReduceOp op, MPI_Proc root)
+    // Optional (the root is a rank in the communicator):
+    int _root;
+    MPI_Op _op;
+
+    MPI_Collective(MPI_World world, MPI_Comm comm, long key, MPI_CollectiveType type, MPI_Op op, int root)
     {
         _world = world;
+        _comm = comm;
+        _size = comm.size();
+        _key = key;
         _type = type;
-        _numLeft = world.numProcs();
+        _numLeft = new AtomicInteger(_size);
+        _numWorking = new AtomicInteger(_size);
+        _full = false;
+        _fired = false;
+        _stage = new AtomicIntegerArray(_size);
+        _partial = (type == MPI_CollectiveType.REDUCE || type == MPI_CollectiveType.REDUCEALL) ? new MPI_DataConnection[_size] : null;
+        _numSlicing = new AtomicInteger(_size);
+        _sliced = false;
+        _conns = new MPI_DataConnection[_size];
+        _conns2 = new MPI_DataConnection[_size];
+        _blocks = (type == MPI_CollectiveType.ALLTOALLV || type == MPI_CollectiveType.SCATTERV
+                   || type == MPI_CollectiveType.GATHERV || type == MPI_CollectiveType.GATHERALLV
+                   || type == MPI_CollectiveType.REDUCE_SCATTER) ? new Blocks[_size] : null;
+        _waiters = new AtomicReferenceArray<Thread>(_size);
         _op = op;
         _root = root;
     }
 
     public MPI_CollectiveType type() { return _type; }
+    public int root() { return _root; }
 
     static public String typeAsString(MPI_CollectiveType type)
     {
@@ -62,141 +159,720 @@ public class MPI_Collective
         case GATHER:    return "GATHER";
         case REDUCEALL: return "REDUCEALL";
         case GATHERALL: return "GATHERALL";
+        case ALLTOALL:  return "ALLTOALL";
+        case ALLTOALLV: return "ALLTOALLV";
+        case SCATTERV:  return "SCATTERV";
+        case GATHERV:   return "GATHERV";
+        case GATHERALLV: return "GATHERALLV";
+        case REDUCE_SCATTER: return "REDUCE_SCATTER";
+        case SCAN:      return "SCAN";
+        case EXSCAN:    return "EXSCAN";
+        case COMM_SPLIT: return "COMM_SPLIT";
         }
         return "UNKNOWN";
     }
 
-    private void doBcast()
+    // Does this type of collective have a root?  (The others are given -1.)
+    static public boolean hasRoot(MPI_CollectiveType type)
+    {
+        switch (type)
+        {
+        case BCAST:
+        case REDUCE:
+        case SCATTER:
+        case GATHER:
+        case SCATTERV:
+        case GATHERV:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Run the collective for one process ('rank' is its rank in the
+    // communicator, 'conn' and 'conn2' are its buffers, and 'blocks' is their
+    // layout, if the blocks have their own sizes).  This joins in, waits for
+    // all of the processes to have joined, does this process' part of the work
+    // on the calling thread, and then waits for all of the parts to be done
+    // (as the others may still be reading this process' buffers).
+    public void run(MPI_Proc proc, int rank, MPI_DataConnection conn, MPI_DataConnection conn2, Blocks blocks)
+    {
+        _conns[rank] = conn;
+        _conns2[rank] = conn2;
+        if (_blocks != null)
+        {
+            _blocks[rank] = blocks;
+        }
+        _waiters.set(rank, Thread.currentThread());
+        if (_numLeft.decrementAndGet() == 0)
+        {
+            // Remove from world
+            _world.removeCollective(_key, this);
+
+            // Mark it full, then remove all processes from the collective (so
+            // when any of them start running, all of the processes aren't
+            // still blocked).  A process that starts waiting for it after this
+            // sees that it is full, and doesn't stay blocked.  A process in a
+            // non-blocking one may be blocked in another.
+            _full = true;
+            for (int i = 0 ; i < _size; i++)
+            {
+                _comm.member(i).clearImBlockedForCollective(this);
+            }
+
+            // Release the processes waiting for the collective to fill
+            wakeAll();
+        }
+        else
+        {
+            while (!_full)
+            {
+                park();
+            }
+        }
+
+        // A collective that moves no data is done once everybody has joined
+        if (_type == MPI_CollectiveType.INIT || _type == MPI_CollectiveType.FINALIZE || _type == MPI_CollectiveType.BARRIER)
+        {
+            return;
+        }
+
+        // Do our part of the work
+        MPI_DataConnection scratch = doPart(proc, rank);
+
+        // The last process to finish releases the others
+        if (_numWorking.decrementAndGet() == 0)
+        {
+            _fired = true;
+            wakeAll();
+        }
+        else
+        {
+            while (!_fired)
+            {
+                park();
+            }
+        }
+
+        if (scratch != null)
+        {
+            scratch.release();
+        }
+    }
+
+    // Do this process' part of the collective.  This returns the scratch
+    // buffer (if any) it used, to be released when everybody is done.
+    private MPI_DataConnection doPart(MPI_Proc proc, int rank)
+    {
+        switch (_type)
+        {
+        case INIT:
+        case FINALIZE:
+        case BARRIER:
+            // EMPTY (these don't get here)
+            break;
+        case BCAST:
+            doBcast(rank);
+            break;
+        case REDUCE:
+            return doReduce(rank);
+        case SCATTER:
+        {
+            MPI_DataConnection src = _conns[_root];
+            _conns2[rank].transferFrom(src, rank * src.count(), 0);
+            break;
+        }
+        case GATHER:
+        {
+            MPI_DataConnection dst = _conns2[_root];
+            dst.transferFrom(_conns[rank], 0, rank * dst.count());
+            break;
+        }
+        case REDUCEALL:
+            if (useSlices())
+            {
+                doAllreduceSlices(rank);
+            }
+            else
+            {
+                doAllreduce(rank);
+            }
+            break;
+        case GATHERALL:
+            doAllgather(rank);
+            break;
+        case ALLTOALL:
+            doAlltoall(rank);
+            break;
+        case ALLTOALLV:
+            doAlltoallv(rank);
+            break;
+        case SCATTERV:
+        {
+            Blocks root = _blocks[_root];
+            MPI_DataConnection dst = _conns2[rank];
+            int len = blockLength(root._sendCounts[rank], dst.count(), _root, rank);
+            dst.transferRange(_conns[_root], root._sendDispls[rank], 0, len);
+            break;
+        }
+        case GATHERV:
+        {
+            Blocks root = _blocks[_root];
+            MPI_DataConnection src = _conns[rank];
+            int len = blockLength(src.count(), root._recvCounts[rank], rank, _root);
+            _conns2[_root].transferRange(src, 0, root._recvDispls[rank], len);
+            break;
+        }
+        case GATHERALLV:
+            doAllgatherv(rank);
+            break;
+        case REDUCE_SCATTER:
+            doReduceScatter(rank);
+            break;
+        case SCAN:
+        case EXSCAN:
+            if (scanSlices())
+            {
+                doScanSlices(rank);
+            }
+            else
+            {
+                doScan(rank);
+            }
+            break;
+        case COMM_SPLIT:
+            doSplit(proc, rank);
+            break;
+        }
+        return null;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The binomial tree.  The ranks are numbered relative to the tree's root
+    // (which is 0).  The parent of rank v is v with its lowest set bit cleared,
+    // and its children are v + 1, v + 2, v + 4, ... up to (but not including)
+    // that bit.  The subtree under v is then the ranks from v up to v plus its
+    // lowest bit, so combining the children in order keeps the ranks in order.
+    static int treeParent(int v)
+    {
+        return v - Integer.lowestOneBit(v);
+    }
+
+    // The steps to the children are the powers of two below this
+    static int treeChildLimit(int v)
+    {
+        return (v == 0) ? Integer.MAX_VALUE : Integer.lowestOneBit(v);
+    }
+
+    static boolean treeLeaf(int v, int len)
+    {
+        return treeChildLimit(v) == 1 || v + 1 >= len;
+    }
+
+    // Bcast: each process copies the data from its parent in the tree rooted
+    // at the root, once the parent has it, so the copies fan out in parallel.
+    private void doBcast(int rank)
+    {
+        int len = _size;
+        int root = _root;
+        int v = (rank - root + len) % len;
+        if (v != 0)
+        {
+            int parent = (treeParent(v) + root) % len;
+            waitForStage(parent, STAGE_RESULT);
+            _conns[rank].transferFrom(_conns[parent], 0, 0);
+        }
+        setStage(rank, STAGE_RESULT);
+        for (int step = 1 ; step < treeChildLimit(v) && v + step < len ; step <<= 1)
+        {
+            wake((v + step + root) % len);
+        }
+    }
+
+    // Reduce the data of the subtree under this process (in the tree rooted at
+    // rank 0, so the data is combined in rank order) into 'result', or into a
+    // scratch buffer if 'result' is null.  A process with no children has
+    // nothing to combine, so its parent reads its data directly.  This returns
+    // the partial result.
+    private MPI_DataConnection reduceSubtree(int rank, MPI_DataConnection result)
     {
-        int len = _world.numProcs();
-        for (int i = 0 ; i < len; i++)
+        int len = _size;
+        MPI_DataConnection own = _conns[rank];
+
+        if (treeLeaf(rank, len))
+        {
+            _partial[rank] = own;
+        }
+        else
         {
-            MPI_Proc proc = _world.findProc(i);
-            if (proc != _root)
+            if (result == null)
+            {
+                result = own.copy();
+            }
+            else
             {
-                proc.collectiveConn().transferFrom(_root.collectiveConn(), 0, 0);
+                result.transferFrom(own, 0, 0);
             }
+            result.setLocation(rank, _op);
+            for (int step = 1 ; step < treeChildLimit(rank) && rank + step < len ; step <<= 1)
+            {
+                int child = rank + step;
+                waitForStage(child, STAGE_REDUCED);
+                boolean leaf = treeLeaf(child, len);
+                result.reduceFrom(_partial[child], leaf ? child : -1, _op);
+            }
+            _partial[rank] = result;
+        }
+        setStage(rank, STAGE_REDUCED);
+        if (rank != 0)
+        {
+            wake(treeParent(rank));
         }
+        return _partial[rank];
     }
 
-    private void doReduce()
+    // Reduce: the tree is reduced into the root's destination if the root is
+    // rank 0.  Otherwise the other inner nodes use scratch buffers, and the
+    // root copies the result from rank 0 at the end.
+    private MPI_DataConnection doReduce(int rank)
     {
-        int len = _world.numProcs();
-        MPI_DataConnection dest = _root.collectiveConn2();
-        for (int i = 0 ; i < len; i++)
+        MPI_DataConnection own = _conns[rank];
+        MPI_DataConnection dst = _conns2[rank];
+        boolean root = (rank == _root);
+        MPI_DataConnection partial = reduceSubtree(rank, (root && rank == 0) ? dst : null);
+        if (rank == 0 && !root)
         {
-            MPI_Proc proc = _world.findProc(i);
-            dest.reduceFrom(proc.collectiveConn(), i, _op);
+            wake(_root);
         }
+        if (root)
+        {
+            if (rank != 0)
+            {
+                waitForStage(0, STAGE_REDUCED);
+                dst.transferFrom(_partial[0], 0, 0);
+            }
+            else if (partial != dst)
+            {
+                // A world of one process
+                dst.transferFrom(partial, 0, 0);
+                dst.setLocation(0, _op);
+            }
+        }
+        return (partial != own && partial != dst) ? partial : null;
     }
 
-    private void doAllreduce()
+    // Allreduce: every process has a destination, so the inner nodes of the
+    // tree reduce into their own, and then the result is broadcast back down
+    // the same tree.
+    private void doAllreduce(int rank)
     {
-        int len = _world.numProcs();
-        MPI_DataConnection dest = _world.findProc(0).collectiveConn2();
-        for (int i = 0 ; i < len; i++)
+        int len = _size;
+        MPI_DataConnection dst = _conns2[rank];
+        MPI_DataConnection partial = reduceSubtree(rank, dst);
+        if (rank == 0)
+        {
+            if (partial != dst)
+            {
+                // Only one process
+                dst.transferFrom(partial, 0, 0);
+                dst.setLocation(0, _op);
+            }
+        }
+        else
         {
-            MPI_Proc proc = _world.findProc(i);
-            dest.reduceFrom(proc.collectiveConn(), i, _op);
+            int parent = treeParent(rank);
+            waitForStage(parent, STAGE_RESULT);
+            dst.transferFrom(_conns2[parent], 0, 0);
         }
-        for (int i = 1 ; i < len; i++)
+        setStage(rank, STAGE_RESULT);
+        for (int step = 1 ; step < treeChildLimit(rank) && rank + step < len ; step <<= 1)
         {
-            MPI_Proc proc = _world.findProc(i);
-            proc.collectiveConn2().transferFrom(dest, 0, 0);
+            wake(rank + step);
         }
     }
 
-    private void doScatter()
+    // Allreduce for large data: a reduce-scatter and then an allgather.  Each
+    // process owns a slice of the data, and reduces its slice of every
+    // process' source into its own destination, so all of the slices are
+    // reduced at once.  The sources are combined from the highest rank down
+    // (each one as the left operand), which keeps them in rank order.  When
+    // every slice is done, each process copies the other slices from their
+    // owners' destinations.
+    //
+    // A tree reduces the whole of the data log(P) times one after the other
+    // (and broadcasts it as many times), where this reduces and copies it
+    // once, so it wins when there is a lot of data to each process.  It
+    // needs an operation that can be done on part of the data (not MAXLOC
+    // or MINLOC, whose location is in the first two entries), and a slice
+    // for everybody.
+    static final int ALLREDUCE_SLICE_MIN_COUNT = 4096;
+
+    private boolean useSlices()
+    {
+        // Decided from rank 0's count, so every process decides the same way
+        int count = _conns2[0].count();
+        return _size > 2 && count >= ALLREDUCE_SLICE_MIN_COUNT && count >= _size
+                && MPI_DataConnection.canReduceRange(_op);
+    }
+
+    private int sliceStart(int rank, int count)
     {
-        int len = _world.numProcs();
-        MPI_DataConnection src = _root.collectiveConn();
-        int step = src.count();
-        for (int i = 0 ; i < len; i++)
+        return (int) ((long) count * rank / _size);
+    }
+
+    private void doAllreduceSlices(int rank)
+    {
+        MPI_DataConnection dst = _conns2[rank];
+        int count = dst.count();
+        int first = sliceStart(rank, count);
+        int len = sliceStart(rank + 1, count) - first;
+        dst.transferRange(_conns[_size - 1], first, first, len);
+        for (int i = _size - 2 ; i >= 0 ; i--)
+        {
+            dst.reduceRange(_conns[i], first, first, len, _op);
+        }
+
+        // The last process to finish its slice releases the others
+        if (_numSlicing.decrementAndGet() == 0)
+        {
+            _sliced = true;
+            wakeAll();
+        }
+        else
         {
-            MPI_Proc proc = _world.findProc(i);
-            proc.collectiveConn2().transferFrom(src, i * step, 0);
+            while (!_sliced)
+            {
+                park();
+            }
+        }
+
+        for (int k = 1 ; k < _size; k++)
+        {
+            int i = (rank - k + _size) % _size;
+            int start = sliceStart(i, count);
+            dst.transferRange(_conns2[i], start, start, sliceStart(i + 1, count) - start);
         }
     }
 
-    private void doGather()
+    // Allgather: each process fills its own destination, so the copying is
+    // spread over all of them.  A process' block comes from its source, or
+    // with MPI_IN_PLACE (no source) from its own block of its destination.
+    //
+    // Each process copies every other process' block directly, going round
+    // the ring (from the process below it, then the one below that, ...) so
+    // they don't all read from the same process at once.  No process waits
+    // for another here, which (in shared memory) beats the log(P) dependent
+    // rounds of recursive doubling, whatever the block size.
+    private void doAllgather(int rank)
     {
-        int len = _world.numProcs();
-        MPI_DataConnection dst = _root.collectiveConn2();
+        MPI_DataConnection dst = _conns2[rank];
         int step = dst.count();
-        for (int i = 0 ; i < len; i++)
+        if (_conns[rank] != null)
+        {
+            dst.transferFrom(_conns[rank], 0, rank * step);
+        }
+        for (int k = 1 ; k < _size; k++)
         {
-            MPI_Proc proc = _world.findProc(i);
-            dst.transferFrom(proc.collectiveConn(), 0, i * step);
+            int i = (rank - k + _size) % _size;
+            if (_conns[i] != null)
+            {
+                dst.transferFrom(_conns[i], 0, i * step);
+            }
+            else
+            {
+                dst.transferRange(_conns2[i], i * step, i * step, step);
+            }
         }
     }
 
-    private void doAllgather()
+    // Alltoall: each process copies the block for it from every process'
+    // source.  They start with their own block and then go up from there, so
+    // they don't all read from the same process at once.
+    private void doAlltoall(int rank)
     {
-        int len = _world.numProcs();
-        MPI_DataConnection dst = _world.findProc(0).collectiveConn2();
+        MPI_DataConnection dst = _conns2[rank];
         int step = dst.count();
-        for (int i = 0 ; i < len; i++)
+        for (int k = 0 ; k < _size; k++)
+        {
+            int i = (rank + k) % _size;
+            MPI_DataConnection src = _conns[i];
+            dst.transferFrom(src, rank * src.count(), i * step);
+        }
+    }
+
+    // Alltoallv: the same, with the blocks laid out as each process says.  The
+    // count a process sends to another has to be the count that one receives.
+    private void doAlltoallv(int rank)
+    {
+        MPI_DataConnection dst = _conns2[rank];
+        Blocks mine = _blocks[rank];
+        for (int k = 0 ; k < _size; k++)
+        {
+            int i = (rank + k) % _size;
+            Blocks theirs = _blocks[i];
+            int len = blockLength(theirs._sendCounts[rank], mine._recvCounts[i], i, rank);
+            dst.transferRange(_conns[i], theirs._sendDispls[rank], mine._recvDispls[i], len);
+        }
+    }
+
+    // Allgatherv: as Allgather, with each block where the destination's
+    // layout puts it.  With MPI_IN_PLACE, a process' block is where its own
+    // layout puts it in its own destination.
+    private void doAllgatherv(int rank)
+    {
+        MPI_DataConnection dst = _conns2[rank];
+        Blocks mine = _blocks[rank];
+        for (int k = 0 ; k < _size; k++)
+        {
+            int i = (rank - k + _size) % _size;
+            if (_conns[i] != null)
+            {
+                int len = blockLength(_conns[i].count(), mine._recvCounts[i], i, rank);
+                dst.transferRange(_conns[i], 0, mine._recvDispls[i], len);
+            }
+            else if (i != rank)
+            {
+                Blocks theirs = _blocks[i];
+                int len = blockLength(theirs._recvCounts[i], mine._recvCounts[i], i, rank);
+                dst.transferRange(_conns2[i], theirs._recvDispls[i], mine._recvDispls[i], len);
+            }
+        }
+    }
+
+    // Reduce_scatter: the sources are split into blocks, one for each process
+    // (laid out as the source blocks say), and each process reduces its own
+    // block of every source into its destination.  That is Allreduce's
+    // slicing with the slices the processes ask for, so all of the blocks are
+    // reduced at once, and only the blocks are written.
+    private void doReduceScatter(int rank)
+    {
+        MPI_DataConnection dst = _conns2[rank];
+        int first = _blocks[rank]._sendDispls[rank];
+        int len = _blocks[rank]._sendCounts[rank];
+
+        // A process whose source is too short for the counts has reported it,
+        // and joined anyway, so only reduce what every source has
+        for (int i = 0 ; i < _size; i++)
+        {
+            int room = Math.max(_conns[i].actualLength() - first, 0);
+            if (room < len)
+            {
+                _world.error(-1, "REDUCE_SCATTER: the source of process " + _comm.member(i).rank() + " has only " + room
+                        + " of the " + len + " entries of the block of process " + _comm.member(rank).rank());
+                len = room;
+            }
+        }
+        if (len == 0)
         {
-            MPI_Proc proc = _world.findProc(i);
-            dst.transferFrom(proc.collectiveConn(), 0, i * step);
+            return;
         }
-        for (int i = 1 ; i < len; i++)
+        dst.transferRange(_conns[_size - 1], first, 0, len);
+        for (int i = _size - 2 ; i >= 0 ; i--)
         {
-            MPI_Proc proc = _world.findProc(i);
-            MPI_DataConnection cpy = proc.collectiveConn2();
-            cpy.transferAll(dst, len * step);
+            dst.reduceRange(_conns[i], first, 0, len, _op);
         }
     }
 
-    public boolean joinIn()
+    // Scan and Exscan: the destination of rank r gets the reduction of the
+    // sources of ranks 0 to r (Scan) or 0 to r - 1 (Exscan, which leaves rank
+    // 0's destination alone).
+    //
+    // Each process owns a slice of the data, and runs the prefix along its
+    // slice of every destination in turn: rank r's slice is its own source
+    // combined with rank r - 1's slice.  The prefixes of all of the slices are
+    // worked out at once, and each process reads and writes count entries in
+    // all, where one process building its own prefix would read r times that.
+    // As with Allreduce, this needs an operation that can be done on part of
+    // the data, and a slice for everybody.
+    private boolean scanSlices()
     {
-        _numLeft--;
+        // Decided from rank 0's count, so every process decides the same way
+        int count = _conns[0].count();
+        return count >= _size && MPI_DataConnection.canReduceRange(_op);
+    }
 
-        if (_numLeft == 0)
+    private void doScanSlices(int rank)
+    {
+        int count = _conns[0].count();
+        int first = sliceStart(rank, count);
+        int len = sliceStart(rank + 1, count) - first;
+        boolean exclusive = (_type == MPI_CollectiveType.EXSCAN);
+        int from = exclusive ? 1 : 0;
+        for (int r = from ; r < _size; r++)
         {
-            // Remove from world
-            _world.setCollective(null);
-
-            // Remove all processes from the collective (so when any of them
-            // start running, all of the processes aren't still blocked)
-            int len = _world.numProcs();
-            for (int i = 0 ; i < len; i++)
-            {
-                MPI_Proc proc = _world.findProc(i);
-                proc.setImBlockedForCollective(null);
-            }
-
-            // Run the logic of the collective
-            switch (_type)
-            {
-            case INIT:
-            case FINALIZE:
-            case BARRIER:
-                // EMPTY
-                break;
-            case BCAST:
-                doBcast();
-                break;
-            case REDUCE:
-                doReduce();
-                break;
-            case SCATTER:
-                doScatter();
-                break;
-            case GATHER:
-                doGather();
-                break;
-            case REDUCEALL:
-                doAllreduce();
-                break;
-            case GATHERALL:
-                doAllgather();
-                break;
+            MPI_DataConnection dst = _conns2[r];
+            dst.transferRange(_conns[exclusive ? r - 1 : r], first, first, len);
+            if (r > from)
+            {
+                dst.reduceRange(_conns2[r - 1], first, first, len, _op);
             }
-            return true;
         }
-        return false;
     }
 
-    public boolean done() { return _numLeft == 0; }
+    // Otherwise (MAXLOC and MINLOC, or very little data) each process reduces
+    // the sources below it into its own destination, in rank order, as the
+    // tree does.
+    private void doScan(int rank)
+    {
+        int last = (_type == MPI_CollectiveType.EXSCAN) ? rank - 1 : rank;
+        if (last < 0)
+        {
+            return;
+        }
+        MPI_DataConnection dst = _conns2[rank];
+        dst.transferFrom(_conns[0], 0, 0);
+        dst.setLocation(0, _op);
+        for (int i = 1 ; i <= last ; i++)
+        {
+            dst.reduceFrom(_conns[i], i, _op);
+        }
+    }
+
+    // The length of a block sent from one rank to another.  The count sent has
+    // to be the count received; if not, report it, and copy what fits.
+    private int blockLength(int sent, int received, int from, int to)
+    {
+        if (sent != received)
+        {
+            _world.error(-1, typeAsString(_type) + ": process " + _comm.member(from).rank() + " sends " + sent
+                    + " entries to process " + _comm.member(to).rank() + ", which receives " + received);
+        }
+        return Math.min(sent, received);
+    }
+
+    // Comm_split: rank 0 makes the new communicators (it needs every process'
+    // color and key to do so), and the others wait for it and take theirs.
+    private void doSplit(MPI_Proc proc, int rank)
+    {
+        if (rank == 0)
+        {
+            _newComms = split(proc.MPI_UNDEFINED);
+            setStage(0, STAGE_RESULT);
+            for (int i = 1 ; i < _size; i++)
+            {
+                wake(i);
+            }
+        }
+        else
+        {
+            waitForStage(0, STAGE_RESULT);
+        }
+        proc.setNewComm(_newComms[rank]);
+    }
+
+    // Group the processes by color, and order each group by key and then by
+    // rank.  The processes with an undefined color get no communicator.
+    private MPI_Comm[] split(final int undefined)
+    {
+        final int colors[] = new int[_size];
+        final int keys[] = new int[_size];
+        Integer order[] = new Integer[_size];
+        for (int i = 0 ; i < _size; i++)
+        {
+            colors[i] = _comm.member(i).splitColor();
+            keys[i] = _comm.member(i).splitKey();
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            public int compare(Integer a, Integer b)
+            {
+                if (colors[a] != colors[b])
+                {
+                    return Integer.compare(colors[a], colors[b]);
+                }
+                if (keys[a] != keys[b])
+                {
+                    return Integer.compare(keys[a], keys[b]);
+                }
+                return Integer.compare(a, b);
+            }
+        });
+
+        MPI_Comm newComms[] = new MPI_Comm[_size];
+        int first = 0;
+        while (first < _size)
+        {
+            int color = colors[order[first]];
+            int end = first + 1;
+            while (end < _size && colors[order[end]] == color)
+            {
+                end++;
+            }
+            if (color != undefined)
+            {
+                MPI_Proc members[] = new MPI_Proc[end - first];
+                for (int i = first ; i < end ; i++)
+                {
+                    members[i - first] = _comm.member(order[i]);
+                }
+                MPI_Comm comm = new MPI_Comm(_world.newContext(), members);
+                for (int i = first ; i < end ; i++)
+                {
+                    newComms[order[i]] = comm;
+                }
+            }
+            first = end;
+        }
+        return newComms;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Waiting for other processes.  Each process has a stage, which only goes
+    // up.  A process waiting for another's stage parks, and the process that
+    // sets it wakes the ones that wait for it.
+    private void setStage(int rank, int stage)
+    {
+        _stage.set(rank, stage);
+    }
+
+    private void waitForStage(int rank, int stage)
+    {
+        while (_stage.get(rank) < stage)
+        {
+            park();
+        }
+    }
+
+    private void wake(int rank)
+    {
+        Thread waiter = _waiters.get(rank);
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    private void wakeAll()
+    {
+        for (int i = 0 ; i < _size; i++)
+        {
+            wake(i);
+        }
+    }
+
+    private void park()
+    {
+        LockSupport.park(this);
+        // Interrupts are ignored, as they were when this used Object.wait()
+        Thread.interrupted();
+    }
+
+    // Has everybody joined?
+    public boolean full()
+    {
+        return _full;
+    }
+
+    // Has everybody finished their part?  The collectives that move no data
+    // are done as soon as they are full.
+    public boolean done()
+    {
+        if (_type == MPI_CollectiveType.INIT || _type == MPI_CollectiveType.FINALIZE || _type == MPI_CollectiveType.BARRIER)
+        {
+            return _full;
+        }
+        return _fired;
+    }
 }
@@ -0,0 +1,98 @@
+// A communicator: a group of processes, numbered from 0 within the group,
+// with its own context.
+//
+// Collectives run over the members of a communicator.  Every member counts
+// the collectives it has started on the communicator, so the n'th collective
+// on it is the same one for all of them, and the world keeps the collectives
+// in flight keyed by context and that number.  Collectives on different
+// communicators (or a fast process starting the next collective on the same
+// one) never get in each other's way.  Point-to-point messages carry the
+// context too, and only match receives on the same communicator.
+//
+// MPI_COMM_WORLD has context 0.  The others are made by MPI_Comm_split and
+// MPI_Comm_dup, and get new contexts from the world.
+
+import java.util.HashMap;
+
+public class MPI_Comm
+{
+    // The context identifies the communicator in the world's collectives
+    private int _context;
+
+    // The members, by their rank in the communicator
+    private MPI_Proc _members[];
+
+    // For each member, how many collectives it has started on this
+    // communicator.  Each member only touches its own entry.
+    private int _collectiveSeq[];
+
+    // The rank in the communicator of each member, unless every process in
+    // the world is a member in rank order (so the ranks are the same)
+    private HashMap<MPI_Proc, Integer> _ranks;
+
+    MPI_Comm(int context, MPI_Proc members[])
+    {
+        this(context, members, inRankOrder(members));
+    }
+
+    // If the members are every process in the world in rank order, the world
+    // may fill in the array after this is made (as the processes need their
+    // MPI_COMM_WORLD when they are made)
+    MPI_Comm(int context, MPI_Proc members[], boolean inRankOrder)
+    {
+        _context = context;
+        _members = members;
+        _collectiveSeq = new int[members.length];
+        _ranks = null;
+        if (!inRankOrder)
+        {
+            _ranks = new HashMap<MPI_Proc, Integer>();
+            for (int i = 0 ; i < members.length ; i++)
+            {
+                _ranks.put(members[i], i);
+            }
+        }
+    }
+
+    private static boolean inRankOrder(MPI_Proc members[])
+    {
+        for (int i = 0 ; i < members.length ; i++)
+        {
+            if (members[i].rank() != i)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int context() { return _context; }
+    public int size() { return _members.length; }
+
+    // The member with a given rank in the communicator (or null)
+    public MPI_Proc member(int rank)
+    {
+        if (rank < 0 || rank >= _members.length)
+        {
+            return null;
+        }
+        return _members[rank];
+    }
+
+    // The rank of a process in the communicator (or -1 if it isn't a member)
+    public int rankOf(MPI_Proc proc)
+    {
+        if (_ranks == null)
+        {
+            return (proc.rank() < _members.length) ? proc.rank() : -1;
+        }
+        Integer rank = _ranks.get(proc);
+        return (rank == null) ? -1 : rank;
+    }
+
+    // The key of the next collective the member with this rank starts
+    public long nextCollective(int rank)
+    {
+        return ((long) _context << 32) | (_collectiveSeq[rank]++ & 0xffffffffL);
+    }
+}
@@ -15,16 +15,33 @@ public class MPI_DataConnection
     // The number of entries being transferred
     protected int _count;
 
+    // Is the data in a buffer taken from the world's buffer pool?
+    protected boolean _pooled;
+
     public MPI_DataConnection(MPI_World world, int count, MPI_Datatype datatype)
     {
         _world = world;
         _datatype = datatype;
         _count = count;
+        _pooled = false;
     }
 
     public MPI_Datatype datatype() { return _datatype; }
     public int count() { return _count; }
 
+    // A connection with no entries (to stand in for a missing buffer, so a
+    // collective can still go ahead)
+    static public MPI_DataConnection empty(MPI_World world, MPI_Datatype datatype)
+    {
+        switch (datatype)
+        {
+        case MPI_DT_INT:    return new MPI_DataConnectionInt(world, new int[0], 0, false);
+        case MPI_DT_DOUBLE: return new MPI_DataConnectionDouble(world, new double[0], 0, false);
+        case MPI_DT_STRING: return new MPI_DataConnectionString(world, new String[0], 0, false);
+        }
+        return null;
+    }
+
     static public String datatypeString(MPI_Datatype datatype)
     {
         switch (datatype)
@@ -62,13 +79,126 @@ public class MPI_DataConnection
     {
     }
 
+    // Copy 'len' entries, from srcOffset in the source to dstOffset here (for
+    // the collectives that move blocks of different sizes)
+    public void transferRange(MPI_DataConnection source, int srcOffset, int dstOffset, int len)
+    {
+    }
+
+    // A reduction starts with a copy of one rank's data, and then the data of
+    // the other ranks (or partial results, each covering several ranks) is
+    // combined into it, in rank order.  For MAXLOC and MINLOC the second entry
+    // holds the location (rank) of the first, so setLocation marks the copy
+    // with its rank.  reduceFrom is given the source's rank, or -1 if the
+    // source is a partial result, which holds its own location.
+    public void setLocation(int rank, MPI_Proc.MPI_ReduceOp op)
+    {
+    }
+
     public void reduceFrom(MPI_DataConnection source, int rank, MPI_Proc.MPI_ReduceOp op)
     {
 
     }
 
+    // The same, for an operation that may be a user one.  A user function
+    // sets inout = in op inout, so a commutative one can combine the source
+    // straight into this.  Otherwise the source is the right operand (it comes
+    // later in rank order), so the result is made in a copy of it.
+    public void setLocation(int rank, MPI_Op op)
+    {
+        if (op.builtin() != null)
+        {
+            setLocation(rank, op.builtin());
+        }
+    }
+
+    public void reduceFrom(MPI_DataConnection source, int rank, MPI_Op op)
+    {
+        if (op.builtin() != null)
+        {
+            reduceFrom(source, rank, op.builtin());
+            return;
+        }
+        if (source.datatype() != _datatype)
+        {
+            _world.error("Data transfer: wanted " + datatypeString(_datatype)
+                    + " but got " + datatypeString(source.datatype()));
+            return;
+        }
+        if (op.commute())
+        {
+            op.function().apply(source.data(), 0, data(), 0, _count, _datatype);
+        }
+        else
+        {
+            MPI_DataConnection right = source.copy();
+            op.function().apply(data(), 0, right.data(), 0, _count, _datatype);
+            transferFrom(right, 0, 0);
+            right.release();
+        }
+    }
+
+    // Reduce only part of the data (for the collectives that split the data
+    // between the processes): the 'len' entries of the source from 'srcOffset'
+    // are combined into the entries of this from 'dstOffset'.  The source is
+    // the left operand (this = source op this), so a process can build a
+    // result from the highest rank down.  This is only for operations without
+    // a location; see canReduceRange.
+    public void reduceRange(MPI_DataConnection source, int srcOffset, int dstOffset, int len, MPI_Proc.MPI_ReduceOp op)
+    {
+    }
+
+    public void reduceRange(MPI_DataConnection source, int srcOffset, int dstOffset, int len, MPI_Op op)
+    {
+        if (op.builtin() != null)
+        {
+            reduceRange(source, srcOffset, dstOffset, len, op.builtin());
+            return;
+        }
+        if (source.datatype() != _datatype)
+        {
+            _world.error("Data transfer: wanted " + datatypeString(_datatype)
+                    + " but got " + datatypeString(source.datatype()));
+            return;
+        }
+        op.function().apply(source.data(), srcOffset, data(), dstOffset, len, _datatype);
+    }
+
+    static public boolean canReduceRange(MPI_Op op)
+    {
+        if (op.builtin() == null)
+        {
+            return true;
+        }
+        return op.builtin() != MPI_Proc.MPI_ReduceOp.MAXLOC && op.builtin() != MPI_Proc.MPI_ReduceOp.MINLOC;
+    }
+
+    // The array holding the data (an int[], double[] or String[])
+    public Object data()
+    {
+        return null;
+    }
+
     public int actualLength()
     {
         return 0;
     }
+
+    // The size of the data being transferred, used to choose between sending
+    // eagerly and rendezvous
+    public long sizeInBytes()
+    {
+        return 0;
+    }
+
+    // Return a connection holding its own copy of the data (for an eager send)
+    public MPI_DataConnection copy()
+    {
+        return null;
+    }
+
+    // Give a pooled buffer back, once its data has been delivered
+    public void release()
+    {
+    }
 }
@@ -11,12 +11,10 @@ public class MPI_DataConnectionDouble extends MPI_DataConnection
         }
         if (buffer)
         {
-            int len = data.length;
-            _data = new double[len];
-            for (int i = 0 ; i < len ; i++)
-            {
-                _data[i] = data[i];
-            }
+            // Only the entries being sent are copied, into a pooled buffer
+            _data = (double []) world.bufferPool(_datatype).take(count);
+            System.arraycopy(data, 0, _data, 0, count);
+            _pooled = true;
         }
         else
         {
@@ -38,7 +36,10 @@ public class MPI_DataConnectionDouble extends MPI_DataConnection
                     + " but got " + MPI_DataConnection.datatypeString(source.datatype()));
             return;
         }
-        for (int i = 0 ; i < _count ; i++)
+        // A receive may be larger than the message, but never copy more than
+        // was sent (an eager send's buffer only holds that much)
+        int len = (src._count < _count) ? src._count : _count;
+        for (int i = 0 ; i < len ; i++)
         {
             _data[dstOffset + i] = src._data[srcOffset + i];
         }
@@ -59,6 +60,26 @@ public class MPI_DataConnectionDouble extends MPI_DataConnection
         }
     }
 
+    public void transferRange(MPI_DataConnection source, int srcOffset, int dstOffset, int len)
+    {
+        MPI_DataConnectionDouble src = source.asDouble();
+        if (src == null)
+        {
+            _world.error("Data transfer: wanted " + MPI_DataConnection.datatypeString(_datatype)
+                    + " but got " + MPI_DataConnection.datatypeString(source.datatype()));
+            return;
+        }
+        System.arraycopy(src._data, srcOffset, _data, dstOffset, len);
+    }
+
+    public void setLocation(int rank, MPI_Proc.MPI_ReduceOp op)
+    {
+        if ((op == MPI_Proc.MPI_ReduceOp.MAXLOC || op == MPI_Proc.MPI_ReduceOp.MINLOC) && _count > 1)
+        {
+            _data[1] = rank;
+        }
+    }
+
     public void reduceFrom(MPI_DataConnection source, int rank, MPI_Proc.MPI_ReduceOp op)
     {
         MPI_DataConnectionDouble src = source.asDouble();
@@ -69,87 +90,101 @@ public class MPI_DataConnectionDouble extends MPI_DataConnection
             return;
         }
 
-        // If the rank is 0, this is the first processor, so we just copy the values.
-        // For all the others we do the 'reduce op'.
-        if (rank == 0)
+        // Everything but MAXLOC and MINLOC has a loop of its own
+        if (MPI_ReduceKernels.reduce(_data, 0, src._data, 0, _count, op))
         {
-            for (int i = 0 ; i < _count ; i++)
-            {
-                _data[i] = src._data[i];
-            }
-            if ((op == MPI_Proc.MPI_ReduceOp.MAXLOC || op == MPI_Proc.MPI_ReduceOp.MINLOC) && _count > 1)
-            {
-                _data[1] = 0;
-            }
+            return;
         }
-        else
+        if (op != MPI_Proc.MPI_ReduceOp.MAXLOC && op != MPI_Proc.MPI_ReduceOp.MINLOC)
         {
-            for (int i = 0 ; i < _count ; i++)
-            {
-                double a = _data[i];
-                double b = src._data[i];
+            _world.error("Reduction " + op + " is not defined for " + MPI_DataConnection.datatypeString(_datatype));
+            return;
+        }
 
-                switch (op)
+        // The location for MAXLOC and MINLOC: the source's rank, or the one a
+        // partial result already holds
+        int loc = (rank >= 0 || _count < 2) ? rank : (int) src._data[1];
+        for (int i = 0 ; i < _count ; i++)
+        {
+            double a = _data[i];
+            double b = src._data[i];
+
+            switch (op)
+            {
+            case MAXLOC:
+                if (i == 0 && _count > 1)
                 {
-                case MAX:
-                    _data[i] = (a > b) ? a : b;
-                    break;
-                case MIN:
-                    _data[i] = (a < b) ? a : b;
-                    break;
-                case SUM:
-                    _data[i] = a + b;
-                    break;
-                case PROD:
-                    _data[i] = a * b;
-                    break;
-                case LAND:
-                    // TBD -- error
-                    break;
-                case LOR:
-                    // TBD -- error
-                    break;
-                case BAND:
-                    // TBD -- error
-                    break;
-                case BOR:
-                    // TBD -- error
-                    break;
-                case MAXLOC:
-                    if (i == 0 && _count > 1)
-                    {
-                        if (b > a)
-                        {
-                            _data[i] = b;
-                            _data[1] = rank;
-                        }
-                    }
-                    else if (i != 1)
+                    if (b > a)
                     {
-                        _data[i] = (a > b) ? a : b;
+                        _data[i] = b;
+                        _data[1] = loc;
                     }
-                    break;
-                case MINLOC:
-                    if (i == 0 && _count > 1)
-                    {
-                        if (b < a)
-                        {
-                            _data[i] = b;
-                            _data[1] = rank;
-                        }
-                    }
-                    else if (i != 1)
+                }
+                else if (i != 1)
+                {
+                    _data[i] = (a > b) ? a : b;
+                }
+                break;
+            case MINLOC:
+                if (i == 0 && _count > 1)
+                {
+                    if (b < a)
                     {
-                        _data[i] = (a < b) ? a : b;
+                        _data[i] = b;
+                        _data[1] = loc;
                     }
-                    break;
                 }
+                else if (i != 1)
+                {
+                    _data[i] = (a < b) ? a : b;
+                }
+                break;
             }
         }
     }
 
+    public void reduceRange(MPI_DataConnection source, int srcOffset, int dstOffset, int len, MPI_Proc.MPI_ReduceOp op)
+    {
+        MPI_DataConnectionDouble src = source.asDouble();
+        if (src == null)
+        {
+            _world.error("Data transfer: wanted " + MPI_DataConnection.datatypeString(_datatype)
+                    + " but got " + MPI_DataConnection.datatypeString(source.datatype()));
+            return;
+        }
+        if (!MPI_ReduceKernels.reduce(_data, dstOffset, src._data, srcOffset, len, op))
+        {
+            _world.error("Reduction " + op + " can't be done on part of " + MPI_DataConnection.datatypeString(_datatype));
+        }
+    }
+
+    public Object data()
+    {
+        return _data;
+    }
+
     public int actualLength()
     {
         return _data.length;
     }
+
+    public long sizeInBytes()
+    {
+        return 8L * _count;
+    }
+
+    public void release()
+    {
+        if (_pooled)
+        {
+            _world.bufferPool(_datatype).give(_data, _count);
+            _data = null;
+            _pooled = false;
+        }
+    }
+
+    public MPI_DataConnection copy()
+    {
+        return new MPI_DataConnectionDouble(_world, _data, _count, true);
+    }
 }
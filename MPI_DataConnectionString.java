@@ -11,12 +11,10 @@ public class MPI_DataConnectionString extends MPI_DataConnection
         }
         if (buffer)
         {
-            int len = data.length;
-            _data = new String[len];
-            for (int i = 0 ; i < len ; i++)
-            {
-                _data[i] = data[i];
-            }
+            // Only the entries being sent are copied, into a pooled buffer
+            _data = (String []) world.bufferPool(_datatype).take(count);
+            System.arraycopy(data, 0, _data, 0, count);
+            _pooled = true;
         }
         else
         {
@@ -39,7 +37,10 @@ public class MPI_DataConnectionString extends MPI_DataConnection
                     + " but got " + MPI_DataConnection.datatypeString(source.datatype()));
             return;
         }
-        for (int i = 0 ; i < _count ; i++)
+        // A receive may be larger than the message, but never copy more than
+        // was sent (an eager send's buffer only holds that much)
+        int len = (src._count < _count) ? src._count : _count;
+        for (int i = 0 ; i < len ; i++)
         {
             _data[dstOffset + i] = src._data[srcOffset + i];
         }
@@ -60,13 +61,59 @@ public class MPI_DataConnectionString extends MPI_DataConnection
         }
     }
 
+    public void transferRange(MPI_DataConnection source, int srcOffset, int dstOffset, int len)
+    {
+        MPI_DataConnectionString src = source.asString();
+        if (src == null)
+        {
+            _world.error("Data transfer: wanted " + MPI_DataConnection.datatypeString(_datatype)
+                    + " but got " + MPI_DataConnection.datatypeString(source.datatype()));
+            return;
+        }
+        System.arraycopy(src._data, srcOffset, _data, dstOffset, len);
+    }
+
     public void reduceFrom(MPI_DataConnection source, int rank, MPI_Proc.MPI_ReduceOp op)
     {
         // TBD -- error
     }
 
+    public Object data()
+    {
+        return _data;
+    }
+
     public int actualLength()
     {
         return _data.length;
     }
+
+    // Strings are counted as two bytes per character
+    public long sizeInBytes()
+    {
+        long size = 0;
+        for (int i = 0 ; i < _count ; i++)
+        {
+            if (_data[i] != null)
+            {
+                size += 2L * _data[i].length();
+            }
+        }
+        return size;
+    }
+
+    public void release()
+    {
+        if (_pooled)
+        {
+            _world.bufferPool(_datatype).give(_data, _count);
+            _data = null;
+            _pooled = false;
+        }
+    }
+
+    public MPI_DataConnection copy()
+    {
+        return new MPI_DataConnectionString(_world, _data, _count, true);
+    }
 }
@@ -0,0 +1,21 @@
+// An interceptor, in the spirit of MPI's profiling interface (PMPI): it is
+// called around every point-to-point call (each send and receive, including
+// those made by MPI_Sendrecv, MPI_Start of a persistent request, the probes,
+// and the completion calls: MPI_Wait, MPI_Test and MPI_Waitany, with
+// MPI_Waitall seen as its waits) and every collective, on the calling
+// process' thread, so profilers, samplers and checkers can be plugged in
+// without changing MPI_Proc.
+//
+// Interceptors are registered on the world (MPI_World.addInterceptor), and
+// are nested in the order they were added: 'before' is called on the first
+// one first, and 'after' on it last.  With none registered, a call costs
+// only the check that there are none.
+
+public interface MPI_Interceptor
+{
+    // The call is about to be made
+    void before(MPI_Call call);
+
+    // The call has returned (call.elapsedNanos() says how long it took)
+    void after(MPI_Call call);
+}
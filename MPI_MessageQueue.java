@@ -0,0 +1,388 @@
+// The matching engine for the messages pending on one process (the destination).
+//
+// A send that arrives before the matching receive has been posted is
+// 'unexpected', and waits here for the receive.  A receive that is posted
+// before the matching send waits here for the send.  Both kinds are kept in
+// buckets keyed by (context, source, tag, datatype), so matching never has to
+// walk the whole list of pending messages.  The context is the communicator's,
+// so messages on different communicators never match each other.  The source
+// is the sender's rank in the world.
+//
+//  - An unexpected send is linked into four buckets: the one for its exact key,
+//    and the ones with MPI_ANY_SOURCE and/or MPI_ANY_TAG in place of its source
+//    and tag.  A receive, wildcards and all, then finds its match at the head
+//    of the one bucket with its own key.
+//  - A posted receive (which may have wildcards) is linked into the single
+//    bucket for its key.  A send looks at the heads of the four buckets that
+//    could match it, and takes the receive that was posted first.
+//
+// Each bucket is a FIFO, so messages between a pair of processes never overtake
+// each other.  Empty buckets are recycled, so a steady state of traffic does not
+// allocate here.
+//
+// This is not thread safe; it is guarded by the owning process' matching lock.
+
+public class MPI_MessageQueue
+{
+    // The wildcard value, for both the source and the tag
+    static final int ANY = -1;
+
+    // The number of buckets an unexpected send is linked into.  Its links are
+    // indexed by which of the source and tag are wildcards in the bucket's key.
+    static final int LINKS = 4;
+    static final int LINK_EXACT = 0;
+    static final int LINK_ANY_TAG = 1;
+    static final int LINK_ANY_SOURCE = 2;
+    static final int LINK_ANY = 3;
+
+    // A FIFO of the messages with one key
+    static class Bucket
+    {
+        int _context;
+        int _src;
+        int _tag;
+        MPI_DataConnection.MPI_Datatype _datatype;
+
+        // Which of the message's links this bucket uses
+        int _link;
+
+        MPI_PendingMessage _head, _tail;
+
+        // The next bucket in the same hash table slot (or on the free list)
+        Bucket _chain;
+    }
+
+    // A hash table of buckets
+    static class Table
+    {
+        Bucket _slots[];
+        int _numBuckets;
+
+        Table()
+        {
+            _slots = new Bucket[16];
+            _numBuckets = 0;
+        }
+    }
+
+    // The unexpected sends, and the posted receives:
+    private Table _sends;
+    private Table _recvs;
+
+    // Emptied buckets, kept for reuse
+    private Bucket _free;
+
+    // How many of each are pending, for the status:
+    private int _numSends, _numRecvs;
+
+    // The most unexpected sends there have been at once, for the metrics.
+    // It is read without the lock, and only written when it goes up.
+    private volatile int _maxSends;
+
+    // Stamped on each message as it is added, so the oldest match can be found
+    private long _nextSeq;
+
+    public MPI_MessageQueue()
+    {
+        _sends = new Table();
+        _recvs = new Table();
+        _free = null;
+        _numSends = _numRecvs = 0;
+        _maxSends = 0;
+        _nextSeq = 0;
+    }
+
+    public int numUnexpected() { return _numSends; }
+    public int numPosted() { return _numRecvs; }
+    public int maxUnexpected() { return _maxSends; }
+    public void resetMaxUnexpected() { _maxSends = _numSends; }
+
+    ////////////////////////////////////////////////////////////////////
+    // Add a send that has no matching receive yet
+    public void addSend(MPI_PendingMessage msg)
+    {
+        int context = msg.comm().context();
+        int src = msg.from().rank();
+        int tag = msg.tag();
+        MPI_DataConnection.MPI_Datatype datatype = msg.datatype();
+
+        msg._qSeq = _nextSeq++;
+        append(msg, LINK_EXACT, getBucket(_sends, context, src, tag, datatype, LINK_EXACT));
+        append(msg, LINK_ANY_TAG, getBucket(_sends, context, src, ANY, datatype, LINK_ANY_TAG));
+        append(msg, LINK_ANY_SOURCE, getBucket(_sends, context, ANY, tag, datatype, LINK_ANY_SOURCE));
+        append(msg, LINK_ANY, getBucket(_sends, context, ANY, ANY, datatype, LINK_ANY));
+        _numSends++;
+        if (_numSends > _maxSends)
+        {
+            _maxSends = _numSends;
+        }
+    }
+
+    // Add a receive that has no matching send yet.  It has no source if it was
+    // posted with MPI_ANY_SOURCE.
+    public void addRecv(MPI_PendingMessage msg)
+    {
+        int src = (msg.from() == null) ? ANY : msg.from().rank();
+
+        msg._qSeq = _nextSeq++;
+        append(msg, LINK_EXACT, getBucket(_recvs, msg.comm().context(), src, msg.tag(), msg.datatype(), LINK_EXACT));
+        _numRecvs++;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // A receive is being posted: find (without removing) the oldest unexpected
+    // send it matches.  The source and tag may be ANY.
+    public MPI_PendingMessage peekSend(int context, int src, int tag, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        Bucket bucket = findBucket(_sends, context, src, tag, datatype);
+        return (bucket == null) ? null : bucket._head;
+    }
+
+    // As above, but the matching send is removed from the queue
+    public MPI_PendingMessage matchSend(int context, int src, int tag, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        MPI_PendingMessage msg = peekSend(context, src, tag, datatype);
+        if (msg != null)
+        {
+            removeSend(msg);
+        }
+        return msg;
+    }
+
+    // A send is being made: find and remove the oldest posted receive it matches.
+    public MPI_PendingMessage matchRecv(int context, int src, int tag, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        if (_numRecvs == 0)
+        {
+            return null;
+        }
+        MPI_PendingMessage best = oldest(null, findBucket(_recvs, context, src, tag, datatype));
+        best = oldest(best, findBucket(_recvs, context, src, ANY, datatype));
+        best = oldest(best, findBucket(_recvs, context, ANY, tag, datatype));
+        best = oldest(best, findBucket(_recvs, context, ANY, ANY, datatype));
+        if (best != null)
+        {
+            unlink(_recvs, best, LINK_EXACT);
+            _numRecvs--;
+        }
+        return best;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Remove a pending message, of either kind, that has not been matched.
+    public void remove(MPI_PendingMessage msg)
+    {
+        if (msg._qBucket[LINK_EXACT] == null)
+        {
+            return;
+        }
+        if (msg.hasSource())
+        {
+            removeSend(msg);
+        }
+        else
+        {
+            unlink(_recvs, msg, LINK_EXACT);
+            _numRecvs--;
+        }
+    }
+
+    private void removeSend(MPI_PendingMessage msg)
+    {
+        for (int i = 0 ; i < LINKS ; i++)
+        {
+            unlink(_sends, msg, i);
+        }
+        _numSends--;
+    }
+
+    private MPI_PendingMessage oldest(MPI_PendingMessage best, Bucket bucket)
+    {
+        if (bucket == null || bucket._head == null)
+        {
+            return best;
+        }
+        if (best == null || bucket._head._qSeq < best._qSeq)
+        {
+            return bucket._head;
+        }
+        return best;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The doubly-linked bucket lists
+    private void append(MPI_PendingMessage msg, int link, Bucket bucket)
+    {
+        msg._qBucket[link] = bucket;
+        msg._qNext[link] = null;
+        msg._qPrev[link] = bucket._tail;
+        if (bucket._tail == null)
+        {
+            bucket._head = msg;
+        }
+        else
+        {
+            bucket._tail._qNext[link] = msg;
+        }
+        bucket._tail = msg;
+    }
+
+    private void unlink(Table table, MPI_PendingMessage msg, int link)
+    {
+        Bucket bucket = msg._qBucket[link];
+        MPI_PendingMessage prev = msg._qPrev[link];
+        MPI_PendingMessage next = msg._qNext[link];
+        if (prev == null)
+        {
+            bucket._head = next;
+        }
+        else
+        {
+            prev._qNext[link] = next;
+        }
+        if (next == null)
+        {
+            bucket._tail = prev;
+        }
+        else
+        {
+            next._qPrev[link] = prev;
+        }
+        msg._qBucket[link] = null;
+        msg._qNext[link] = null;
+        msg._qPrev[link] = null;
+
+        if (bucket._head == null)
+        {
+            freeBucket(table, bucket);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The hash tables of buckets
+    private static int hash(int context, int src, int tag, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        int h = (src * 0x9E3779B1) ^ (tag * 0x85EBCA6B) ^ (context * 0xC2B2AE35) ^ datatype.ordinal();
+        return h ^ (h >>> 16);
+    }
+
+    // Find the bucket for a key, or null if there is none
+    private Bucket findBucket(Table table, int context, int src, int tag, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        Bucket slots[] = table._slots;
+        Bucket bucket = slots[hash(context, src, tag, datatype) & (slots.length - 1)];
+        while (bucket != null)
+        {
+            if (bucket._context == context && bucket._src == src && bucket._tag == tag && bucket._datatype == datatype)
+            {
+                return bucket;
+            }
+            bucket = bucket._chain;
+        }
+        return null;
+    }
+
+    // Find the bucket for a key, creating it (for the given link) if needed
+    private Bucket getBucket(Table table, int context, int src, int tag, MPI_DataConnection.MPI_Datatype datatype, int link)
+    {
+        Bucket bucket = findBucket(table, context, src, tag, datatype);
+        if (bucket != null)
+        {
+            return bucket;
+        }
+
+        if (table._numBuckets >= table._slots.length * 3 / 4)
+        {
+            rehash(table, table._slots.length * 2);
+        }
+        if (_free != null)
+        {
+            bucket = _free;
+            _free = bucket._chain;
+        }
+        else
+        {
+            bucket = new Bucket();
+        }
+        bucket._context = context;
+        bucket._src = src;
+        bucket._tag = tag;
+        bucket._datatype = datatype;
+        bucket._link = link;
+        bucket._head = bucket._tail = null;
+
+        int slot = hash(context, src, tag, datatype) & (table._slots.length - 1);
+        bucket._chain = table._slots[slot];
+        table._slots[slot] = bucket;
+        table._numBuckets++;
+        return bucket;
+    }
+
+    // Take an emptied bucket out of its table and put it on the free list
+    private void freeBucket(Table table, Bucket bucket)
+    {
+        int slot = hash(bucket._context, bucket._src, bucket._tag, bucket._datatype) & (table._slots.length - 1);
+        if (table._slots[slot] == bucket)
+        {
+            table._slots[slot] = bucket._chain;
+        }
+        else
+        {
+            Bucket prev = table._slots[slot];
+            while (prev._chain != bucket)
+            {
+                prev = prev._chain;
+            }
+            prev._chain = bucket._chain;
+        }
+        table._numBuckets--;
+        bucket._datatype = null;
+        bucket._chain = _free;
+        _free = bucket;
+    }
+
+    private void rehash(Table table, int size)
+    {
+        Bucket old[] = table._slots;
+        table._slots = new Bucket[size];
+        for (int i = 0 ; i < old.length ; i++)
+        {
+            Bucket bucket = old[i];
+            while (bucket != null)
+            {
+                Bucket next = bucket._chain;
+                int slot = hash(bucket._context, bucket._src, bucket._tag, bucket._datatype) & (size - 1);
+                bucket._chain = table._slots[slot];
+                table._slots[slot] = bucket;
+                bucket = next;
+            }
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Print the pending messages.  The unexpected sends are all in the buckets
+    // keyed by (ANY, ANY), and the posted receives are each in one bucket.
+    public void status(boolean sendToErr, MPI_World world)
+    {
+        printBuckets(_sends, LINK_ANY, sendToErr, world);
+        printBuckets(_recvs, LINK_EXACT, sendToErr, world);
+    }
+
+    private void printBuckets(Table table, int link, boolean sendToErr, MPI_World world)
+    {
+        for (int i = 0 ; i < table._slots.length ; i++)
+        {
+            for (Bucket bucket = table._slots[i]; bucket != null; bucket = bucket._chain)
+            {
+                if (bucket._link != link)
+                {
+                    continue;
+                }
+                for (MPI_PendingMessage msg = bucket._head; msg != null; msg = msg._qNext[link])
+                {
+                    msg.status(sendToErr, world);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+// The communication counters of one process: messages and bytes sent and
+// received (by datatype), the time spent blocked, the high-water mark of the
+// unexpected message queue, and the collectives started (by type).
+//
+// They are cheap enough to leave on.  Each counter is a LongAdder, which is
+// striped, so the other processes' threads that deliver messages to this one
+// (and the background threads of its non-blocking collectives) don't contend
+// on a single word with it.  Only the blocking paths read the clock.  The
+// counters are read (and summed) only when somebody asks, over JMX.
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class MPI_Metrics implements MPI_MetricsMXBean
+{
+    // The bytes sent to each other process are only kept for worlds up to
+    // this size, as they take numProcs longs for each process
+    static public final int MAX_PEERS = 1024;
+
+    private int _rank;
+    private int _numProcs;
+
+    // The process' queue, for the unexpected messages
+    private MPI_MessageQueue _queue;
+
+    // By datatype
+    private LongAdder _messagesSent[];
+    private LongAdder _bytesSent[];
+    private LongAdder _messagesReceived[];
+    private LongAdder _bytesReceived[];
+
+    // By world rank.  Only the process' own thread sends, so it makes this on
+    // its first send.
+    private volatile AtomicLongArray _bytesSentTo;
+
+    private LongAdder _sendBlocked;
+    private LongAdder _recvBlocked;
+    private LongAdder _collectiveTime;
+
+    // By collective type
+    private LongAdder _collectives[];
+
+    MPI_Metrics(int rank, int numProcs, MPI_MessageQueue queue)
+    {
+        _rank = rank;
+        _numProcs = numProcs;
+        _queue = queue;
+        int numDatatypes = MPI_DataConnection.MPI_Datatype.values().length;
+        _messagesSent = newAdders(numDatatypes);
+        _bytesSent = newAdders(numDatatypes);
+        _messagesReceived = newAdders(numDatatypes);
+        _bytesReceived = newAdders(numDatatypes);
+        _bytesSentTo = null;
+        _sendBlocked = new LongAdder();
+        _recvBlocked = new LongAdder();
+        _collectiveTime = new LongAdder();
+        _collectives = newAdders(MPI_Collective.MPI_CollectiveType.values().length);
+    }
+
+    static private LongAdder[] newAdders(int n)
+    {
+        LongAdder adders[] = new LongAdder[n];
+        for (int i = 0 ; i < n ; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Counting (called by MPI_Proc and MPI_PendingMessage)
+
+    // A message sent by this process to the process with world rank 'dest'
+    public void sent(MPI_DataConnection.MPI_Datatype datatype, long bytes, int dest)
+    {
+        _messagesSent[datatype.ordinal()].increment();
+        _bytesSent[datatype.ordinal()].add(bytes);
+        if (_numProcs <= MAX_PEERS)
+        {
+            AtomicLongArray bytesSentTo = _bytesSentTo;
+            if (bytesSentTo == null)
+            {
+                bytesSentTo = new AtomicLongArray(_numProcs);
+                _bytesSentTo = bytesSentTo;
+            }
+            bytesSentTo.addAndGet(dest, bytes);
+        }
+    }
+
+    // A message delivered to this process (counted by whichever process
+    // does the transfer)
+    public void received(MPI_DataConnection.MPI_Datatype datatype, long bytes)
+    {
+        _messagesReceived[datatype.ordinal()].increment();
+        _bytesReceived[datatype.ordinal()].add(bytes);
+    }
+
+    public void blocked(boolean isSend, long nanos)
+    {
+        if (isSend)
+        {
+            _sendBlocked.add(nanos);
+        }
+        else
+        {
+            _recvBlocked.add(nanos);
+        }
+    }
+
+    public void collectiveStarted(MPI_Collective.MPI_CollectiveType type)
+    {
+        _collectives[type.ordinal()].increment();
+    }
+
+    // Time in a blocking collective, or waiting for a non-blocking one
+    public void collectiveTime(long nanos)
+    {
+        _collectiveTime.add(nanos);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The MXBean
+
+    public int getRank() { return _rank; }
+
+    public Map<String, Long> getMessagesSent() { return byDatatype(_messagesSent); }
+    public Map<String, Long> getBytesSent() { return byDatatype(_bytesSent); }
+    public Map<String, Long> getMessagesReceived() { return byDatatype(_messagesReceived); }
+    public Map<String, Long> getBytesReceived() { return byDatatype(_bytesReceived); }
+
+    public long[] getBytesSentTo()
+    {
+        AtomicLongArray bytesSentTo = _bytesSentTo;
+        long bytes[] = new long[(_numProcs <= MAX_PEERS) ? _numProcs : 0];
+        for (int i = 0 ; bytesSentTo != null && i < bytes.length ; i++)
+        {
+            bytes[i] = bytesSentTo.get(i);
+        }
+        return bytes;
+    }
+
+    public long getSendBlockedNanos() { return _sendBlocked.sum(); }
+    public long getRecvBlockedNanos() { return _recvBlocked.sum(); }
+    public long getCollectiveNanos() { return _collectiveTime.sum(); }
+
+    public int getUnexpectedQueueDepth() { return _queue.numUnexpected(); }
+    public int getUnexpectedQueueHighWater() { return _queue.maxUnexpected(); }
+
+    public Map<String, Long> getCollectives()
+    {
+        MPI_Collective.MPI_CollectiveType types[] = MPI_Collective.MPI_CollectiveType.values();
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < types.length ; i++)
+        {
+            counts.put(MPI_Collective.typeAsString(types[i]), _collectives[i].sum());
+        }
+        return counts;
+    }
+
+    public void reset()
+    {
+        resetAll(_messagesSent);
+        resetAll(_bytesSent);
+        resetAll(_messagesReceived);
+        resetAll(_bytesReceived);
+        resetAll(_collectives);
+        _sendBlocked.reset();
+        _recvBlocked.reset();
+        _collectiveTime.reset();
+        AtomicLongArray bytesSentTo = _bytesSentTo;
+        for (int i = 0 ; bytesSentTo != null && i < _numProcs ; i++)
+        {
+            bytesSentTo.set(i, 0);
+        }
+        _queue.resetMaxUnexpected();
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // For MPI_WorldMetrics, which sums these up
+
+    long sumBytesSent() { return sumAll(_bytesSent); }
+    long sumBytesReceived() { return sumAll(_bytesReceived); }
+    long sumBlockedNanos() { return _sendBlocked.sum() + _recvBlocked.sum() + _collectiveTime.sum(); }
+
+    static private Map<String, Long> byDatatype(LongAdder adders[])
+    {
+        MPI_DataConnection.MPI_Datatype datatypes[] = MPI_DataConnection.MPI_Datatype.values();
+        Map<String, Long> counts = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < datatypes.length ; i++)
+        {
+            counts.put(MPI_DataConnection.datatypeString(datatypes[i]), adders[i].sum());
+        }
+        return counts;
+    }
+
+    static private long sumAll(LongAdder adders[])
+    {
+        long sum = 0;
+        for (int i = 0 ; i < adders.length ; i++)
+        {
+            sum += adders[i].sum();
+        }
+        return sum;
+    }
+
+    static private void resetAll(LongAdder adders[])
+    {
+        for (int i = 0 ; i < adders.length ; i++)
+        {
+            adders[i].reset();
+        }
+    }
+}
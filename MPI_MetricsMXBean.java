@@ -0,0 +1,30 @@
+// The communication metrics of one process, as published over JMX (see
+// MPI_Metrics).  The maps are keyed by datatype or collective type.  Times are
+// in nanoseconds, and bytes are as sizeInBytes counts them.
+
+import java.util.Map;
+
+public interface MPI_MetricsMXBean
+{
+    int getRank();
+
+    Map<String, Long> getMessagesSent();
+    Map<String, Long> getBytesSent();
+    Map<String, Long> getMessagesReceived();
+    Map<String, Long> getBytesReceived();
+
+    // The bytes sent to each process, by world rank (empty if the world is
+    // too large to keep them)
+    long[] getBytesSentTo();
+
+    long getSendBlockedNanos();
+    long getRecvBlockedNanos();
+    long getCollectiveNanos();
+
+    int getUnexpectedQueueDepth();
+    int getUnexpectedQueueHighWater();
+
+    Map<String, Long> getCollectives();
+
+    void reset();
+}
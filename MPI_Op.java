@@ -0,0 +1,64 @@
+// A reduction operation: either one of the built-in MPI_ReduceOps, or one made
+// by MPI_Op_create from a user function.
+//
+// A user function combines two slices of data: it is given 'in' and 'inout'
+// (int[], double[] or String[] arrays, depending on the datatype) and sets
+// inout[inoutOffset + i] = in[inOffset + i] op inout[inoutOffset + i] for i
+// from 0 to 'len'.  The library always combines the ranks in order, so the
+// operation only has to be associative.  If it is also commutative, the
+// library can combine a partial result directly into its own buffer; if not,
+// it may work on a copy, so the operands stay in rank order.
+
+public class MPI_Op
+{
+    public interface MPI_User_function
+    {
+        void apply(Object in, int inOffset, Object inout, int inoutOffset, int len, MPI_DataConnection.MPI_Datatype datatype);
+    }
+
+    // The built-in operation, or null for a user one
+    private MPI_Proc.MPI_ReduceOp _builtin;
+
+    // The user function, and whether it is commutative
+    private MPI_User_function _function;
+    private boolean _commute;
+
+    // One instance for each of the built-in operations
+    static private MPI_Op _builtins[];
+    static
+    {
+        MPI_Proc.MPI_ReduceOp ops[] = MPI_Proc.MPI_ReduceOp.values();
+        _builtins = new MPI_Op[ops.length];
+        for (int i = 0 ; i < ops.length ; i++)
+        {
+            _builtins[i] = new MPI_Op(ops[i], null, true);
+        }
+    }
+
+    private MPI_Op(MPI_Proc.MPI_ReduceOp builtin, MPI_User_function function, boolean commute)
+    {
+        _builtin = builtin;
+        _function = function;
+        _commute = commute;
+    }
+
+    // A user operation
+    MPI_Op(MPI_User_function function, boolean commute)
+    {
+        this(null, function, commute);
+    }
+
+    static public MPI_Op builtin(MPI_Proc.MPI_ReduceOp op)
+    {
+        return _builtins[op.ordinal()];
+    }
+
+    public MPI_Proc.MPI_ReduceOp builtin() { return _builtin; }
+    public MPI_User_function function() { return _function; }
+    public boolean commute() { return _commute; }
+
+    public String toString()
+    {
+        return (_builtin != null) ? _builtin.toString() : "user operation";
+    }
+}
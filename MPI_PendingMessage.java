@@ -1,42 +1,100 @@
 // When an MPI_Send or MPI_Recv is called, an MPI_PendingMessage instance is created.
 // It will initially have either the src (source) or dst (destination) values filled.
 // (src if this was created by an MPI_Send, and dst if it was by MPI_Recv).  In either
-// case, the message will be stored on the destination.  When the matching MPI_Send or
-// MPI_Recv is called, the message will actually be transferred.
+// case, the message will be stored in the destination's MPI_MessageQueue.  When the
+// matching MPI_Send or MPI_Recv is called, the message will actually be transferred.
 //
 // The message may be either blocking or non-blocking.  In addition, the message may
 // contain its own buffer for the data, but this is all built into the data connections.
 //
 // This class will be subclassed to support integer, double, or string data.  The
 // subclasses will have srcData and dstData arrays.
+//
+// A process that blocks on a message records its thread here and parks.  The
+// process that completes the transfer unparks just that thread, so only the
+// counterparty is woken.
+
+import java.util.concurrent.locks.LockSupport;
 
 public class MPI_PendingMessage
 {
-    // These form a linked-list in the destination, with the latest message being at
-    // the start of the list.
-    private MPI_PendingMessage _next;
+    // The links and bookkeeping used by the destination's MPI_MessageQueue.  An
+    // unexpected send is in several of its buckets at once, so there is one
+    // link per bucket.
+    MPI_PendingMessage _qNext[];
+    MPI_PendingMessage _qPrev[];
+    MPI_MessageQueue.Bucket _qBucket[];
+    long _qSeq;
 
     // References to the source and destination process:
     private MPI_Proc _src, _dst;
 
-    // Is the source MPI_Proc blocked?  Is the destination?
-    private boolean _srcBlocked, _dstBlocked;
+    // Is the source MPI_Proc blocked?  Is the destination?  These are set under
+    // the destination's matching lock, but are read by the parked threads.
+    private volatile boolean _srcBlocked, _dstBlocked;
+
+    // The threads (if any) parked waiting on the source or destination side:
+    private volatile Thread _srcWaiter, _dstWaiter;
+
+    // Set once the data has been transferred:
+    private volatile boolean _delivered;
+
+    // Set if the data was copied into a buffer when it was sent, so the
+    // sender doesn't have to wait for it to be received:
+    private boolean _eager;
 
     // The message may have a tag:
     private int _tag;
 
+    // The communicator it was sent on (a message only matches a receive on
+    // the same communicator):
+    private MPI_Comm _comm;
+
     // The MPI_DataConnections for the source and destination of the transfer
     private MPI_DataConnection _dataSrc, _dataDst;
 
-    public MPI_PendingMessage(MPI_Proc src, MPI_Proc dst, int tag, MPI_PendingMessage next)
+    // The size of the data sent, for the receiver's metrics
+    private long _sizeInBytes;
+
+    public MPI_PendingMessage(MPI_Proc src, MPI_Proc dst, int tag, MPI_Comm comm)
     {
-        _next = next;
+        _qNext = new MPI_PendingMessage[MPI_MessageQueue.LINKS];
+        _qPrev = new MPI_PendingMessage[MPI_MessageQueue.LINKS];
+        _qBucket = new MPI_MessageQueue.Bucket[MPI_MessageQueue.LINKS];
+        _qSeq = 0;
         _src = src;
         _dst = dst;
         _srcBlocked = _dstBlocked = false;
+        _srcWaiter = _dstWaiter = null;
+        _delivered = false;
+        _eager = false;
         _tag = tag;
+        _comm = comm;
         _dataSrc = null;
         _dataDst = null;
+        _sizeInBytes = 0;
+    }
+
+    // Make a persistent request's message ready to be queued again.  It has
+    // been delivered, so it is no longer on any queue.  Only the other side's
+    // connection is cleared: the other process may still be reading this
+    // side's (for its status), and that hasn't changed.
+    public void restart(MPI_Proc src, int tag, boolean isSend)
+    {
+        _src = src;
+        _tag = tag;
+        _srcBlocked = _dstBlocked = false;
+        _srcWaiter = _dstWaiter = null;
+        _delivered = false;
+        _eager = false;
+        if (isSend)
+        {
+            _dataDst = null;
+        }
+        else
+        {
+            _dataSrc = null;
+        }
     }
 
     public void setSource(MPI_DataConnection src)
@@ -44,6 +102,8 @@ public class MPI_PendingMessage
         _dataSrc = src;
     }
     public void setSrc(MPI_Proc src) { if (_src == null) { _src = src; } }
+    public void setSizeInBytes(long bytes) { _sizeInBytes = bytes; }
+    public long sizeInBytes() { return _sizeInBytes; }
     public void setTag(int tag) { _tag = tag; }
 
     public void setDestination(MPI_DataConnection dst)
@@ -51,9 +111,13 @@ public class MPI_PendingMessage
         _dataDst = dst;
     }
 
+    // The order the message was added to its queue in
+    public long queueOrder() { return _qSeq; }
+
     public MPI_Proc from() { return _src; }
     public MPI_Proc to() { return _dst; }
     public int tag() { return _tag; }
+    public MPI_Comm comm() { return _comm; }
     public MPI_DataConnection.MPI_Datatype datatype()
     {
         if (_dataSrc != null)
@@ -63,35 +127,74 @@ public class MPI_PendingMessage
         return _dataDst.datatype();
     }
 
-    public MPI_PendingMessage next() { return _next; }
-
-    public void removeNext() { if (_next != null) { _next = _next._next; } }
-
     public boolean hasSource() { return _dataSrc != null; }
     public MPI_DataConnection dataSrc() { return _dataSrc; }
 
     public boolean hasDestination() { return _dataDst != null; }
 
-    public void setSourceBlocked() { _srcBlocked = true; }
-    public void clearSourceBlocked() { _srcBlocked = false; }
+    // The set routines are called by the thread that is about to block, and the
+    // clear routines wake that thread.
+    public void setSourceBlocked() { _srcWaiter = Thread.currentThread(); _srcBlocked = true; }
+    public void clearSourceBlocked() { _srcBlocked = false; wake(_srcWaiter); }
     public boolean sourceBlocked() { return _srcBlocked; }
 
-    public void setDestinationBlocked() { _dstBlocked = true; }
-    public void clearDestinationBlocked() { _dstBlocked = false; }
+    public void setDestinationBlocked() { _dstWaiter = Thread.currentThread(); _dstBlocked = true; }
+    public void clearDestinationBlocked() { _dstBlocked = false; wake(_dstWaiter); }
     public boolean destinationBlocked() { return _dstBlocked; }
 
+    public void waitWhileSourceBlocked()
+    {
+        while (_srcBlocked)
+        {
+            park();
+        }
+    }
+
+    public void waitWhileDestinationBlocked()
+    {
+        while (_dstBlocked)
+        {
+            park();
+        }
+    }
+
+    private void park()
+    {
+        LockSupport.park(this);
+        // Interrupts are ignored, as they were when this used Object.wait()
+        Thread.interrupted();
+    }
+
+    private static void wake(Thread waiter)
+    {
+        if (waiter != null)
+        {
+            LockSupport.unpark(waiter);
+        }
+    }
+
     // This method is called to actually perform the transfer of the data.  This
     // is subclassed to move the actual data, but common portions of the code
-    // are handled here.
+    // are handled here.  The message has already been taken off the queue.
     public void sendMessage()
     {
         _dataDst.transferFrom(_dataSrc, 0, 0);
-        _dst.removeMessage(this);
+        _dataSrc.release();
+        _delivered = true;
     }
 
+    public boolean delivered() { return _delivered; }
+
+    public void setEager() { _eager = true; }
+    public boolean eager() { return _eager; }
+
+    // Is the send (or receive) side of the message complete?  An eager send is
+    // complete as soon as it has been buffered.
+    public boolean complete(boolean isSend) { return _delivered || (isSend && _eager); }
+
     public void status(boolean sendToErr, MPI_World world)
     {
-        String msg = "...[From: " + _src.rank();
+        String msg = "...[From: " + ((_src == null) ? "ANY" : "" + _src.rank());
         if (_srcBlocked)
         {
             msg += "(blocked)";
@@ -102,6 +205,10 @@ public class MPI_PendingMessage
             msg += "(blocked)";
         }
         msg += ", Tag: " + _tag + "]";
+        if (_eager)
+        {
+            msg += " eager";
+        }
         if (_dataSrc != null)
         {
             msg += " has source conn";
@@ -1,6 +1,10 @@
 // This class is one instance of a process (thread).  This will be subclassed,
 // with the subclass implementing the 'run' routine.
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
 public class MPI_Proc implements Runnable
 {
@@ -8,10 +12,14 @@ public class MPI_Proc implements Runnable
     final public MPI_DataConnection.MPI_Datatype MPI_INT = MPI_DataConnection.MPI_Datatype.MPI_DT_INT;
     final public MPI_DataConnection.MPI_Datatype MPI_DOUBLE = MPI_DataConnection.MPI_Datatype.MPI_DT_DOUBLE;
     final public MPI_DataConnection.MPI_Datatype MPI_STRING = MPI_DataConnection.MPI_Datatype.MPI_DT_STRING;
-    final public int MPI_COMM_WORLD = 82736154;
+    final public MPI_Comm MPI_COMM_WORLD;
+    final public MPI_Comm MPI_COMM_NULL = null;
     final public int MPI_ANY_SOURCE = -1;
     final public int MPI_ANY_TAG = -1;
     final public MPI_Status MPI_STATUS_IGNORE = null;
+    final public MPI_Status MPI_STATUSES_IGNORE[] = null;
+    final public MPI_Request MPI_REQUEST_NULL = null;
+    final public int MPI_UNDEFINED = -32766;
     public enum MPI_ReduceOp { MAX, MIN, SUM, PROD, LAND, LOR, BAND, BOR, MAXLOC, MINLOC };
     final public MPI_ReduceOp MPI_MAX = MPI_ReduceOp.MAX;
     final public MPI_ReduceOp MPI_MIN = MPI_ReduceOp.MIN;
@@ -24,6 +32,11 @@ public class MPI_Proc implements Runnable
     final public MPI_ReduceOp MPI_MAXLOC = MPI_ReduceOp.MAXLOC;
     final public MPI_ReduceOp MPI_MINLOC = MPI_ReduceOp.MINLOC;
 
+    // Given as the source of a collective, to say that this process' data is
+    // already in its place in the destination
+    public enum MPI_InPlace { IN_PLACE };
+    final public MPI_InPlace MPI_IN_PLACE = MPI_InPlace.IN_PLACE;
+
     private Thread _myThread;
 
     // Pointer to the 'World', the collection of all the processes
@@ -32,22 +45,51 @@ public class MPI_Proc implements Runnable
     // The rank (index) for this process
     private int _rank;
 
-    private MPI_ProcState _state;
+    private volatile MPI_ProcState _state;
 
     // If this process is blocked waiting for Send/Recv with another process,
-    // this will hold that process:
-    private MPI_Proc _imBlockedForProc;
-
-    // If this process is blocked waiting for a collective, this is the collective
-    private MPI_Collective _imBlockedForCollective;
-
-    // The list of pending messages for this process:
-    private MPI_PendingMessage _messages;
-
-    // To handle the collective messaging, each proc will have the data connection(s),
-    // stored here.  The collective's code will do the data transfers.
-    private MPI_DataConnection _collectiveConn;
-    private MPI_DataConnection _collectiveConn2;
+    // this will hold that process.  It is read without a lock by the deadlock
+    // checks of other processes, so it is volatile.  It is only changed through
+    // setImBlockedForProc, which keeps the other process' count up to date.
+    private volatile MPI_Proc _imBlockedForProc;
+    private static final AtomicReferenceFieldUpdater<MPI_Proc, MPI_Proc> _blockedForUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(MPI_Proc.class, MPI_Proc.class, "_imBlockedForProc");
+
+    // How many processes are blocked waiting for this one, so entering a
+    // collective doesn't have to look at every process in the world:
+    private final AtomicInteger _numBlockedForMe = new AtomicInteger(0);
+
+    // The thread (if any) parked in MPI_Probe, for a sender to wake when it
+    // queues an unexpected message.  It is guarded by the matching lock.
+    private Thread _probeWaiter;
+
+    // If this process is blocked waiting for a collective, this is the collective.
+    // It is only set while the collective still lacks members; the last one to
+    // join clears it (see clearImBlockedForCollective).
+    private volatile MPI_Collective _imBlockedForCollective;
+    private static final AtomicReferenceFieldUpdater<MPI_Proc, MPI_Collective> _blockedForCollectiveUpdater =
+        AtomicReferenceFieldUpdater.newUpdater(MPI_Proc.class, MPI_Collective.class, "_imBlockedForCollective");
+
+    // The color and key given to MPI_Comm_split, and the communicator it makes
+    private int _splitColor, _splitKey;
+    private MPI_Comm _newComm;
+
+    // The pending messages for this process (unexpected sends and posted receives):
+    private MPI_MessageQueue _queue;
+
+    // The matching lock for this process.  It guards _queue (and the blocked
+    // flags of the messages on it), and is only held while posting or matching,
+    // never while waiting.  Only the destination's lock is ever held, so
+    // Send/Recv between disjoint pairs of processes run in parallel.
+    private final Object _matchLock = new Object();
+
+    // The communication counters, published over JMX by the world
+    private MPI_Metrics _metrics;
+
+    // The event trace (null unless the world is tracing), and how long the
+    // last wait for a message was blocked, for it
+    private MPI_Trace _trace;
+    private long _lastWait;
 
     private QV_View _myView;
 
@@ -55,12 +97,15 @@ public class MPI_Proc implements Runnable
     {
         _world = world;
         _rank = rank;
-        _messages = null;
+        MPI_COMM_WORLD = world.commWorld();
+        _queue = new MPI_MessageQueue();
+        _metrics = new MPI_Metrics(rank, world.numProcs(), _queue);
+        _trace = (world.traceEvents() > 0) ? new MPI_Trace(rank, world.traceEvents()) : null;
+        _lastWait = 0;
         _state = MPI_ProcState.INITIALIZED;
         _imBlockedForProc = null;
         _imBlockedForCollective = null;
-        _collectiveConn = null;
-        _collectiveConn2 = null;
+        _probeWaiter = null;
         _myView = null;
     }
 
@@ -75,8 +120,8 @@ public class MPI_Proc implements Runnable
     }
 
     public int rank() { return _rank; }
-    public MPI_DataConnection collectiveConn() { return _collectiveConn; }
-    public MPI_DataConnection collectiveConn2() { return _collectiveConn2; }
+    public MPI_Metrics metrics() { return _metrics; }
+    public MPI_Trace trace() { return _trace; }
 
     public void run()
     {
@@ -97,6 +142,7 @@ public class MPI_Proc implements Runnable
         }
         _state = MPI_ProcState.STOPPED;
         _myView = null;
+        _world.procStopped();
     }
 
     // This function is overwritten
@@ -129,7 +175,7 @@ public class MPI_Proc implements Runnable
             _world.error(1, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.STARTED));
         }
         _state = MPI_ProcState.BLOCKED;
-        startCollective(MPI_Collective.MPI_CollectiveType.INIT, MPI_ReduceOp.SUM, null);
+        startCollective(MPI_COMM_WORLD, MPI_Collective.MPI_CollectiveType.INIT, MPI_ReduceOp.SUM, -1, null, null);
         _state = MPI_ProcState.RUNNING;
     }
 
@@ -140,60 +186,153 @@ public class MPI_Proc implements Runnable
             _world.error(1, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
         }
         _state = MPI_ProcState.BLOCKED;
-        startCollective(MPI_Collective.MPI_CollectiveType.FINALIZE, MPI_ReduceOp.SUM, null);
+        startCollective(MPI_COMM_WORLD, MPI_Collective.MPI_CollectiveType.FINALIZE, MPI_ReduceOp.SUM, -1, null, null);
         _state = MPI_ProcState.FINALIZED;
     }
 
     public void MPI_Barrier()
     {
+        MPI_Barrier(MPI_COMM_WORLD);
+    }
+
+    public void MPI_Barrier(MPI_Comm comm)
+    {
+        if (!checkComm(comm, 3))
+        {
+            return;
+        }
         _state = MPI_ProcState.BLOCKED;
-        startCollective(MPI_Collective.MPI_CollectiveType.BARRIER, MPI_ReduceOp.SUM, null);
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.BARRIER, MPI_ReduceOp.SUM, -1, null, null);
         _state = MPI_ProcState.RUNNING;
     }
 
-    public int MPI_Comm_size(int comm)
+    public int MPI_Comm_size(MPI_Comm comm)
     {
         if (_state != MPI_ProcState.RUNNING)
         {
             _world.error(2, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
         }
-        if (comm != MPI_COMM_WORLD)
+        if (!checkComm(comm, 3))
         {
-            _world.error(2, "Process " + _rank + " Communicator not set to MPI_COMM_WORLD");
+            return 0;
         }
-        return(_world.numProcs());
+        return(comm.size());
     }
 
-    public int MPI_Comm_rank(int comm)
+    public int MPI_Comm_rank(MPI_Comm comm)
     {
         if (_state != MPI_ProcState.RUNNING)
         {
             _world.error(2, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
         }
-        if (comm != MPI_COMM_WORLD)
+        if (!checkComm(comm, 3))
+        {
+            return MPI_UNDEFINED;
+        }
+        return(comm.rankOf(this));
+    }
+
+    // Check that this process is in a communicator, and report an error if not
+    private boolean checkComm(MPI_Comm comm, int depth)
+    {
+        if (comm == MPI_COMM_NULL || comm.rankOf(this) < 0)
+        {
+            _world.error(depth, "Process " + _rank + " is not in the communicator");
+            return false;
+        }
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Creating communicators.  These are collectives over the old
+    // communicator.  MPI_Comm_split puts the processes with the same color
+    // in a new communicator, ranked by key (and then by their old rank), and
+    // returns MPI_COMM_NULL to those with the color MPI_UNDEFINED.  Every new
+    // communicator has its own context, so its messages and collectives are
+    // kept apart from those on any other communicator.
+    protected MPI_Comm MPI_Comm_split(MPI_Comm comm, int color, int key)
+    {
+        if (!checkComm(comm, 3))
+        {
+            return MPI_COMM_NULL;
+        }
+        if (color < 0 && color != MPI_UNDEFINED)
+        {
+            _world.error(2, "Process " + _rank + " split color " + color + " must be non-negative or MPI_UNDEFINED");
+            return MPI_COMM_NULL;
+        }
+        _state = MPI_ProcState.BLOCKED;
+        _splitColor = color;
+        _splitKey = key;
+        _newComm = MPI_COMM_NULL;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.COMM_SPLIT, MPI_ReduceOp.SUM, -1, null, null);
+        MPI_Comm newComm = _newComm;
+        _newComm = MPI_COMM_NULL;
+        _state = MPI_ProcState.RUNNING;
+        return newComm;
+    }
+
+    // MPI_Comm_dup makes a communicator with the same processes and ranks, but
+    // its own context, so (for example) a library's messages can't be matched
+    // by the application's
+    protected MPI_Comm MPI_Comm_dup(MPI_Comm comm)
+    {
+        if (!checkComm(comm, 3))
         {
-            _world.error(2, "Process " + _rank + " Communicator not set to MPI_COMM_WORLD");
+            return MPI_COMM_NULL;
         }
-        return(_rank);
+        return MPI_Comm_split(comm, 0, comm.rankOf(this));
     }
 
+    public int splitColor() { return _splitColor; }
+    public int splitKey() { return _splitKey; }
+    public void setNewComm(MPI_Comm comm) { _newComm = comm; }
+
     public MPI_ProcState state() { return _state; }
     public MPI_Proc imBlockedForProc() { return _imBlockedForProc; }
+
+    // Set (or clear, with null) the process this one is blocked for.  This may
+    // be called both by this process and by the one that releases it, so the
+    // swap is atomic and the counts are only moved once.
+    private void setImBlockedForProc(MPI_Proc other)
+    {
+        MPI_Proc old = _blockedForUpdater.getAndSet(this, other);
+        if (old != null)
+        {
+            old._numBlockedForMe.decrementAndGet();
+        }
+        if (other != null)
+        {
+            other._numBlockedForMe.incrementAndGet();
+        }
+    }
     public MPI_Collective imBlockedForCollective() { return _imBlockedForCollective; }
     public void setImBlockedForCollective(MPI_Collective collective) { _imBlockedForCollective = collective; }
 
+    // Clear the collective this process is blocked for, if it is that one (it
+    // may have moved on to another)
+    public void clearImBlockedForCollective(MPI_Collective collective)
+    {
+        _blockedForCollectiveUpdater.compareAndSet(this, collective, null);
+    }
+
     ////////////////////////////////////////////////////////////////////
     // Check for a deadlock situation.  We are considering having this
     // process block waiting for another process.  Report an error if
     // that would make a loop.
+    //
+    // This walks the other processes' _imBlockedForProc chain without
+    // taking their locks, so it is a best-effort check.  A process that is
+    // blocked on us can only be released by us, so a loop seen here is real.
     private void checkForDeadlock(MPI_Proc other, int depth, boolean doSend)
     {
-        if (other._imBlockedForCollective != null)
+        MPI_Collective collective = other._imBlockedForCollective;
+        if (collective != null)
         {
             String msg = "Process " + _rank + " cannot do a ";
             msg += doSend ? "MPI_Send" : "MPI_Recv";
             msg += " with process " + other._rank + " because that process is in a "
-                    + MPI_Collective.typeAsString(other._imBlockedForCollective.type());
+                    + MPI_Collective.typeAsString(collective.type());
             _world.error(depth, msg);
             return;
         }
@@ -240,628 +379,2198 @@ public class MPI_Proc implements Runnable
     }
 
     ////////////////////////////////////////////////////////////////////
-    // The common routine for doing an MPI_Send
+    // The common routine for doing an MPI_Send.  If 'request' is null the
+    // send is blocking.  Otherwise it is started, and the request is set up
+    // so it can be completed later (and if it is persistent, its message is
+    // reused rather than creating a new one).
+    //
+    // If the receive has already been posted, the data is copied straight
+    // into it.  Otherwise a message smaller than the world's eager limit is
+    // sent eagerly: it is copied into a buffer and the send is complete at
+    // once.  Larger messages (and all synchronous sends) use rendezvous: the
+    // sender's array is kept, and the data is copied from it straight into
+    // the receiver's when the receive is posted.
     private void doSend(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype,
-                        int destID, int tag, int comm, boolean blocking)
+                        int destID, int tag, MPI_Comm comm, boolean synchronous, MPI_Request request)
     {
-        if (_state != MPI_ProcState.RUNNING)
+        MPI_Call call = beforeCall(messageCallKind(MPI_Trace.KIND_SEND, request), conn, destID, tag, comm, request);
+        try
         {
-            _world.error(4, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
-        }
+            long traceStart = 0;
+            if (_trace != null)
+            {
+                traceStart = System.nanoTime();
+                _lastWait = 0;
+            }
 
-        // Verify datatype and comm
-        if (datatype != conn.datatype())
-        {
-            _world.error(4, "Sending " + MPI_DataConnection.datatypeString(conn.datatype())
-                    + " data, but request says " + MPI_DataConnection.datatypeString(datatype));
-            return;
-        }
-        if (comm != MPI_COMM_WORLD)
-        {
-            _world.error(4, "Process " + _rank + " Communicator not set to MPI_COMM_WORLD");
-        }
+            if (_state != MPI_ProcState.RUNNING)
+            {
+                _world.error(4, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
+            }
 
-        MPI_Proc dest = _world.findProc(destID);
-        if (dest == null)
-        {
-            _world.error(4, "No process with rank " + destID);
-            return;
-        }
+            // Verify datatype and comm
+            if (datatype != conn.datatype())
+            {
+                _world.error(4, "Sending " + MPI_DataConnection.datatypeString(conn.datatype())
+                        + " data, but request says " + MPI_DataConnection.datatypeString(datatype));
+                return;
+            }
+            if (!checkComm(comm, 5))
+            {
+                return;
+            }
 
-        synchronized(_world)
-        {
-            // See if the destination has a pending message (is waiting for me)
-            MPI_PendingMessage msg = dest.getDstMessage(_rank, tag, datatype);
-            while (msg != null && msg.hasSource())
+            MPI_Proc dest = comm.member(destID);
+            if (dest == null)
             {
-                // There is already a pending message from us, so we block until that
-                // message is taken.
-                checkForDeadlock(dest, 5, true);
-                msg.setSourceBlocked();
-                _imBlockedForProc = dest;
-                while (msg.sourceBlocked())
-                {
-                    try
-                    {
-                        _world.wait();
-                    }
-                    catch (InterruptedException e)
-                    {
-                        // Empty
-                    }
-                }
-                _imBlockedForProc = null;
-                _world.notifyAll();
-                // That message should be taken.  See if there is ANOTHER one
-                // (there shouldn't be...)
-                msg = dest.getDstMessage(_rank, tag, datatype);
-            }
-            if (msg != null)
-            {
-                // We have a message, but it must have come from the destination
-                // (because it doesn't have a source).  Send to it.
-                // Set the src values for this message
-                msg.setSrc(this);
-                msg.setSource(conn);
-                // The message may have an ANY_TAG, so set the message to my tag
-                msg.setTag(tag);
-
-                msg.clearDestinationBlocked();
-
-                // Send the actual message, then return
-                msg.sendMessage();
-                dest._imBlockedForProc = null;
-                _world.notifyAll();
+                _world.error(4, "No process with rank " + destID);
                 return;
             }
 
-            // There wasn't a pending message, so our only option is to make one, then
-            // block for it.  First check to see if this would cause deadlock!
-            if (blocking)
+            if (tag == MPI_ANY_TAG)
             {
-                checkForDeadlock(dest, 5, true);
+                _world.error(4, "Process " + _rank + " cannot send with MPI_ANY_TAG");
+                return;
             }
 
-            // There wasn't a pending message, so create one here, then wait (if we block)
-            msg = dest.createNewMessage(this, tag);
-            msg.setSource(conn);
-            if (blocking)
+            long bytes = conn.sizeInBytes();
+            _metrics.sent(datatype, bytes, dest.rank());
+
+            MPI_PendingMessage msg;
+            synchronized(dest._matchLock)
             {
-                msg.setSourceBlocked();
-                _imBlockedForProc = dest;
-                while (msg.sourceBlocked())
+                // See if the destination has posted a receive that we match (is waiting for me)
+                msg = dest._queue.matchRecv(comm.context(), _rank, tag, datatype);
+                if (msg != null)
                 {
-                    try
+                    // Set the src values for this message
+                    msg.setSrc(this);
+                    msg.setSource(conn);
+                    // The message may have an ANY_TAG, so set the message to my tag
+                    msg.setTag(tag);
+
+                    // Send the actual message, then release the receiver and return
+                    msg.sendMessage();
+                    dest._metrics.received(datatype, bytes);
+                    if (msg.destinationBlocked())
+                    {
+                        dest.setImBlockedForProc(null);
+                        msg.clearDestinationBlocked();
+                    }
+                    if (request != null)
                     {
-                        _world.wait();
+                        request.start(msg, true);
                     }
-                    catch (InterruptedException e)
+                    if (_trace != null)
                     {
-                        // Empty
+                        traceMessage(MPI_Trace.KIND_SEND, traceStart, dest, tag, conn, request != null);
                     }
+                    return;
                 }
-                _imBlockedForProc = null;
-                _world.notifyAll();
+
+                // There wasn't a pending message, so create one here (or restart
+                // the persistent one).  It goes behind any earlier messages from
+                // us, so it can't overtake them.
+                msg = (request == null) ? null : request.persistentMessage();
+                if (msg != null)
+                {
+                    msg.restart(this, tag, true);
+                }
+                else
+                {
+                    msg = new MPI_PendingMessage(this, dest, tag, comm);
+                }
+                msg.setSizeInBytes(bytes);
+                if (!synchronous && bytes <= _world.eagerLimit())
+                {
+                    msg.setSource(conn.copy());
+                    msg.setEager();
+                }
+                else
+                {
+                    msg.setSource(conn);
+                }
+                dest._queue.addSend(msg);
+
+                // Wake the destination if it is probing for a message.  Its probe
+                // is no longer blocked for anyone (if this isn't the message it
+                // wants, it blocks again), so a rendezvous wait below doesn't
+                // see a loop through it.
+                if (dest._probeWaiter != null)
+                {
+                    dest.setImBlockedForProc(null);
+                    LockSupport.unpark(dest._probeWaiter);
+                }
+            }
+
+            // Now block for it (if this is blocking, and wasn't sent eagerly)
+            if (request != null)
+            {
+                request.start(msg, false);
+            }
+            else if (!msg.complete(true))
+            {
+                waitForMessage(msg, true, 6);
+            }
+            if (_trace != null)
+            {
+                traceMessage(MPI_Trace.KIND_SEND, traceStart, dest, tag, conn, request != null);
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
+
+    // Tell the interceptors (if there are any) that a call is being made.  This
+    // returns the call, for afterCall, or null if there are no interceptors.
+    private MPI_Call beforeCall(int kind, MPI_DataConnection conn, int peer, int tag, MPI_Comm comm, MPI_Request request)
+    {
+        MPI_Interceptor interceptors[] = _world.interceptors();
+        if (interceptors == null)
+        {
+            return null;
+        }
+        MPI_Call call = new MPI_Call(this, kind, (conn == null) ? null : conn.datatype(), (conn == null) ? 0 : conn.count(),
+                                     peer, tag, comm, request, interceptors);
+        int entered = 0;
+        try
+        {
+            for ( ; entered < interceptors.length ; entered++)
+            {
+                interceptors[entered].before(call);
+            }
+        }
+        finally
+        {
+            // If one of them threw, the ones before it still see the call end
+            if (entered < interceptors.length)
+            {
+                call.finished();
+                callAfter(call, entered - 1);
             }
         }
+        call.started();
+        return call;
+    }
+
+    // The kind of call a send or receive is: blocking, non-blocking, or the
+    // restart of a persistent request (only MPI_Start does that)
+    static private int messageCallKind(int kind, MPI_Request request)
+    {
+        if (request == null)
+        {
+            return kind;
+        }
+        return request.persistent() ? MPI_Trace.KIND_START : (kind | MPI_Trace.NONBLOCKING);
+    }
+
+    // The call has returned: the interceptors see it in the reverse order
+    private void afterCall(MPI_Call call)
+    {
+        call.finished();
+        callAfter(call, call.interceptors().length - 1);
+    }
+
+    // Call 'after' on the interceptors from 'last' down to the first, even if
+    // one of them throws
+    private void callAfter(MPI_Call call, int last)
+    {
+        if (last < 0)
+        {
+            return;
+        }
+        try
+        {
+            call.interceptors()[last].after(call);
+        }
+        finally
+        {
+            callAfter(call, last - 1);
+        }
+    }
+
+    // Record a send or receive that started at 'start' and has just returned
+    private void traceMessage(int kind, long start, MPI_Proc peer, int tag, MPI_DataConnection conn, boolean nonblocking)
+    {
+        _trace.record(nonblocking ? (kind | MPI_Trace.NONBLOCKING) : kind, (peer == null) ? -1 : peer.rank(), tag,
+                      conn.count(), start, System.nanoTime(), _lastWait);
     }
 
     // The general form of the MPI_Send function for integer data (may or may not block)
-    protected void MPI_Send(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected void MPI_Send(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
-        doSend(conn, datatype, destID, tag, comm, true);
+        doSend(conn, datatype, destID, tag, comm, false, null);
     }
 
     // The blocking (synchronous) version of the MPI_Send function for integer data
-    protected void MPI_Ssend(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected void MPI_Ssend(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
-        doSend(conn, datatype, destID, tag, comm, true);
+        doSend(conn, datatype, destID, tag, comm, true, null);
     }
 
     // The non-blocking (asynchronous) version of the MPI_Send function for integer data
-    protected void MPI_Isend(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected MPI_Request MPI_Isend(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
-        MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, true);
-        doSend(conn, datatype, destID, tag, comm, false);
+        MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
+        MPI_Request request = new MPI_Request(true);
+        doSend(conn, datatype, destID, tag, comm, false, request);
+        return request;
     }
 
     // The general form of the MPI_Send function for double data (may or may not block)
-    protected void MPI_Send(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected void MPI_Send(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
-        doSend(conn, datatype, destID, tag, comm, true);
+        doSend(conn, datatype, destID, tag, comm, false, null);
     }
 
     // The blocking (synchronous) version of the MPI_Send function for double data
-    protected void MPI_Ssend(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected void MPI_Ssend(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
-        doSend(conn, datatype, destID, tag, comm, true);
+        doSend(conn, datatype, destID, tag, comm, true, null);
     }
 
     // The non-blocking (asynchronous) version of the MPI_Send function for double data
-    protected void MPI_Isend(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected MPI_Request MPI_Isend(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
-        MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, true);
-        doSend(conn, datatype, destID, tag, comm, false);
+        MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
+        MPI_Request request = new MPI_Request(true);
+        doSend(conn, datatype, destID, tag, comm, false, request);
+        return request;
     }
 
     // The general form of the MPI_Send function for string data (may or may not block)
-    protected void MPI_Send(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected void MPI_Send(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
-        doSend(conn, datatype, destID, tag, comm, true);
+        doSend(conn, datatype, destID, tag, comm, false, null);
     }
 
     // The blocking (synchronous) version of the MPI_Send function for string data
-    protected void MPI_Ssend(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected void MPI_Ssend(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
-        doSend(conn, datatype, destID, tag, comm, true);
+        doSend(conn, datatype, destID, tag, comm, true, null);
     }
 
     // The non-blocking (asynchronous) version of the MPI_Send function for string data
-    protected void MPI_Isend(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, int comm)
+    protected MPI_Request MPI_Isend(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
     {
-        MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, true);
-        doSend(conn, datatype, destID, tag, comm, false);
+        MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
+        MPI_Request request = new MPI_Request(true);
+        doSend(conn, datatype, destID, tag, comm, false, request);
+        return request;
     }
 
     ////////////////////////////////////////////////////////////////////
-    // The general MPI_Recv function
-    private void doRecv(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, int comm, MPI_Status status)
+    // The general MPI_Recv function.  Like doSend, this blocks if 'request'
+    // is null, and otherwise starts the receive and sets up the request.
+    private void doRecv(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm,
+                        MPI_Status status, MPI_Request request)
     {
-        if (_state != MPI_ProcState.RUNNING)
+        MPI_Call call = beforeCall(messageCallKind(MPI_Trace.KIND_RECV, request), conn, srcID, tag, comm, request);
+        try
         {
-            _world.error(4, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
-        }
+            long traceStart = 0;
+            if (_trace != null)
+            {
+                traceStart = System.nanoTime();
+                _lastWait = 0;
+            }
 
-        // Verify datatype and comm
-        if (datatype != conn.datatype())
-        {
-            _world.error(4, "Receiving " + MPI_DataConnection.datatypeString(conn.datatype())
-                    + " data, but request says " + MPI_DataConnection.datatypeString(datatype));
-            return;
-        }
-        if (comm != MPI_COMM_WORLD)
-        {
-            _world.error(4, "Process " + _rank + " Communicator not set to MPI_COMM_WORLD");
-        }
+            if (_state != MPI_ProcState.RUNNING)
+            {
+                _world.error(4, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
+            }
 
-        MPI_Proc src = null;
-        if (srcID != MPI_ANY_SOURCE)
-        {
-            src = _world.findProc(srcID);
-            if (src == null)
+            // Verify datatype and comm
+            if (datatype != conn.datatype())
+            {
+                _world.error(4, "Receiving " + MPI_DataConnection.datatypeString(conn.datatype())
+                        + " data, but request says " + MPI_DataConnection.datatypeString(datatype));
+                return;
+            }
+            if (!checkComm(comm, 5))
             {
-                _world.error(4, "No process with rank " + srcID);
                 return;
             }
-        }
 
-        // See if there is a pending message (is waiting for me)
-        synchronized(_world)
-        {
-            MPI_PendingMessage msg = getDstMessage(srcID, tag, datatype);
-            if (msg != null)
+            MPI_Proc src = null;
+            if (srcID != MPI_ANY_SOURCE)
             {
+                src = comm.member(srcID);
                 if (src == null)
                 {
-                    src = msg.from();
+                    _world.error(4, "No process with rank " + srcID);
+                    return;
                 }
+            }
 
-                // We have a message, receive from it.
-                // Set the dst values for this message
-                msg.setDestination(conn);
-                msg.clearSourceBlocked();
+            // See if there is a pending message (is waiting for me)
+            MPI_PendingMessage msg;
+            boolean matched;
+            synchronized(_matchLock)
+            {
+                msg = _queue.matchSend(comm.context(), (src == null) ? MPI_ANY_SOURCE : src.rank(), tag, datatype);
+                matched = (msg != null);
+                if (matched)
+                {
+                    // We have a message, receive from it.
+                    // Set the dst values for this message
+                    msg.setDestination(conn);
+
+                    // Send the actual message, then release the sender
+                    msg.sendMessage();
+                    _metrics.received(datatype, msg.sizeInBytes());
+                    if (msg.sourceBlocked())
+                    {
+                        msg.from().setImBlockedForProc(null);
+                        msg.clearSourceBlocked();
+                    }
+                }
+                else
+                {
+                    // There wasn't a pending message, so create one here (or
+                    // restart the persistent one)
+                    msg = (request == null) ? null : request.persistentMessage();
+                    if (msg != null)
+                    {
+                        msg.restart(src, tag, false);
+                    }
+                    else
+                    {
+                        msg = new MPI_PendingMessage(src, this, tag, comm);
+                    }
+                    msg.setDestination(conn);
+                    _queue.addRecv(msg);
+                }
+            }
 
-                // Send the actual message, then return
-                msg.sendMessage();
-                if (status != MPI_STATUS_IGNORE)
+            // Now block for it (if this is blocking).  A message we matched has
+            // already been received, and may be restarted by its (persistent)
+            // sender as soon as it was, so we don't wait on it.
+            if (request != null)
+            {
+                request.start(msg, matched);
+                if (_trace != null)
                 {
-                    status.MPI_SOURCE = msg.from().rank();
-                    status.MPI_TAG = msg.tag();
-                    status.MPI_COUNT = msg.dataSrc().count();
+                    traceMessage(MPI_Trace.KIND_RECV, traceStart, src, tag, conn, true);
                 }
-                src._imBlockedForProc = null;
-                _world.notifyAll();
                 return;
             }
+            if (!matched)
+            {
+                waitForMessage(msg, false, 6);
+            }
+            fillStatus(msg, status);
+            if (_trace != null)
+            {
+                traceMessage(MPI_Trace.KIND_RECV, traceStart, msg.from(), msg.tag(), conn, false);
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
 
-            // There wasn't a pending message, so create one here, then wait
-            msg = createNewMessage(src, tag);
-            msg.setDestination(conn);
-            if (srcID != MPI_ANY_SOURCE)
+    ////////////////////////////////////////////////////////////////////
+    // Block until a message we sent (or are receiving) has been transferred.
+    // We never wait while holding the matching lock.  The message records the
+    // thread that is blocked on it, and the process that completes the transfer
+    // wakes just that thread.
+    private void waitForMessage(MPI_PendingMessage msg, boolean isSend, int depth)
+    {
+        MPI_Proc dest = msg.to();
+        long start;
+        synchronized(dest._matchLock)
+        {
+            if (msg.complete(isSend))
             {
-                checkForDeadlock(src, 5, false);
+                return;
             }
-            msg.setDestinationBlocked();
-            _imBlockedForProc = src;
-            while (msg.destinationBlocked())
+
+            // First check to see if this would cause deadlock!  (A receive from
+            // MPI_ANY_SOURCE isn't waiting for anybody in particular.)
+            MPI_Proc other = isSend ? dest : msg.from();
+            if (other != null)
             {
-                try
-                {
-                    _world.wait();
-                }
-                catch (InterruptedException e)
-                {
-                    // Empty
-                }
+                checkForDeadlock(other, depth, isSend);
             }
-            if (status != MPI_STATUS_IGNORE)
+            if (isSend)
             {
-                status.MPI_SOURCE = (msg.from() == null) ? MPI_ANY_SOURCE : msg.from().rank();
-                status.MPI_TAG = msg.tag();
-                status.MPI_COUNT = msg.dataSrc().count();
+                msg.setSourceBlocked();
+            }
+            else
+            {
+                msg.setDestinationBlocked();
             }
-            _imBlockedForProc = null;
-            _world.notifyAll();
+            setImBlockedForProc(other);
+            start = System.nanoTime();
+        }
+
+        if (isSend)
+        {
+            msg.waitWhileSourceBlocked();
+        }
+        else
+        {
+            msg.waitWhileDestinationBlocked();
+        }
+        setImBlockedForProc(null);
+        _lastWait = System.nanoTime() - start;
+        _metrics.blocked(isSend, _lastWait);
+    }
+
+    // Fill in the status for a message that has been received
+    private void fillStatus(MPI_PendingMessage msg, MPI_Status status)
+    {
+        if (status != MPI_STATUS_IGNORE)
+        {
+            status.MPI_SOURCE = (msg.from() == null) ? MPI_ANY_SOURCE : msg.comm().rankOf(msg.from());
+            status.MPI_TAG = msg.tag();
+            status.MPI_COUNT = msg.dataSrc().count();
         }
     }
 
     // The blocking (synchronous) version of the MPI_Recv function for integer data
-    protected void MPI_Recv(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, int comm, MPI_Status status)
+    protected void MPI_Recv(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm, MPI_Status status)
     {
         MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
-        doRecv(conn, datatype, srcID, tag, comm, status);
+        doRecv(conn, datatype, srcID, tag, comm, status, null);
     }
 
     // The blocking (synchronous) version of the MPI_Recv function for double data
-    protected void MPI_Recv(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, int comm, MPI_Status status)
+    protected void MPI_Recv(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm, MPI_Status status)
     {
         MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
-        doRecv(conn, datatype, srcID, tag, comm, status);
+        doRecv(conn, datatype, srcID, tag, comm, status, null);
     }
 
     // The blocking (synchronous) version of the MPI_Recv function for string data
-    protected void MPI_Recv(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, int comm, MPI_Status status)
+    protected void MPI_Recv(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm, MPI_Status status)
     {
         MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
-        doRecv(conn, datatype, srcID, tag, comm, status);
-    }
-
-    ////////////////////////////////////////////////////////////////////
-    // The MPI_Probe function
-    private void MPI_Probe(int srcID, int tag, int comm, MPI_Status status)
-    {
-        // TBD
-    }
-
-    ////////////////////////////////////////////////////////////////////
-    // The general MPI_Bcast function
-    private void doBcast(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int rootID, int comm)
-    {
-        _state = MPI_ProcState.BLOCKED;
-        _collectiveConn = conn;
-        startCollective(MPI_Collective.MPI_CollectiveType.BCAST, MPI_ReduceOp.SUM, _world.findProc(rootID));
-        _collectiveConn = null;
-        _state = MPI_ProcState.RUNNING;
+        doRecv(conn, datatype, srcID, tag, comm, status, null);
     }
 
-    protected void MPI_Bcast(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, int comm)
+    // The non-blocking (asynchronous) version of the MPI_Recv function for integer data
+    protected MPI_Request MPI_Irecv(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
-        doBcast(conn, datatype, rootID, comm);
+        MPI_Request request = new MPI_Request(false);
+        doRecv(conn, datatype, srcID, tag, comm, MPI_STATUS_IGNORE, request);
+        return request;
     }
 
-    protected void MPI_Bcast(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, int comm)
+    // The non-blocking (asynchronous) version of the MPI_Recv function for double data
+    protected MPI_Request MPI_Irecv(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
-        doBcast(conn, datatype, rootID, comm);
+        MPI_Request request = new MPI_Request(false);
+        doRecv(conn, datatype, srcID, tag, comm, MPI_STATUS_IGNORE, request);
+        return request;
     }
 
-    protected void MPI_Bcast(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, int comm)
+    // The non-blocking (asynchronous) version of the MPI_Recv function for string data
+    protected MPI_Request MPI_Irecv(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
     {
         MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
-        doBcast(conn, datatype, rootID, comm);
+        MPI_Request request = new MPI_Request(false);
+        doRecv(conn, datatype, srcID, tag, comm, MPI_STATUS_IGNORE, request);
+        return request;
     }
 
     ////////////////////////////////////////////////////////////////////
-    // The general MPI_Scatter function
-    private void doScatter(MPI_DataConnection sConn, MPI_DataConnection dConn, int rootID, int comm)
-    {
-        int actualLength = sConn.actualLength();
-        int neededLength = _world.numProcs() * sConn.count();
-        if (actualLength < neededLength)
+    // The fused send-receive.  Both halves are posted before either is waited
+    // for, so a ring shift (every process sending to the next and receiving
+    // from the one before) completes in one step, and never deadlocks.
+    private void doSendrecv(MPI_DataConnection sConn, MPI_DataConnection.MPI_Datatype sDatatype, int destID, int sendTag,
+                            MPI_DataConnection rConn, MPI_DataConnection.MPI_Datatype rDatatype, int srcID, int recvTag,
+                            MPI_Comm comm, MPI_Status status, boolean synchronous)
+    {
+        MPI_Request recv = new MPI_Request(false);
+        doRecv(rConn, rDatatype, srcID, recvTag, comm, MPI_STATUS_IGNORE, recv);
+        MPI_Request send = new MPI_Request(true);
+        doSend(sConn, sDatatype, destID, sendTag, comm, synchronous, send);
+
+        if (recv.active())
         {
-            _world.error(2, "The Scatter source array should have size " + neededLength + " but has size " + actualLength);
+            if (!recv.complete())
+            {
+                waitForMessage(recv.message(), false, 6);
+            }
+            fillStatus(recv.message(), status);
+        }
+        if (send.active() && !send.complete())
+        {
+            waitForMessage(send.message(), true, 6);
         }
-        _state = MPI_ProcState.BLOCKED;
-        _collectiveConn = sConn;
-        _collectiveConn2 = dConn;
-        startCollective(MPI_Collective.MPI_CollectiveType.SCATTER, MPI_ReduceOp.SUM, _world.findProc(rootID));
-        _collectiveConn = null;
-        _collectiveConn2 = null;
-        _state = MPI_ProcState.RUNNING;
     }
 
-    protected void MPI_Scatter(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    // In the replace form, the data being sent is first copied into a pooled
+    // buffer, which is sent by rendezvous (so it isn't copied again) and given
+    // back to the pool when it has been received.  The received data then goes
+    // straight into the caller's array.
+    private void doSendrecvReplace(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int destID, int sendTag,
+                                   int srcID, int recvTag, MPI_Comm comm, MPI_Status status)
+    {
+        doSendrecv(conn.copy(), datatype, destID, sendTag, conn, datatype, srcID, recvTag, comm, status, true);
+    }
+
+    // Send and receive integer data in one operation
+    protected void MPI_Sendrecv(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int destID, int sendTag,
+                                int []rData, int rCount, MPI_DataConnection.MPI_Datatype rDatatype, int srcID, int recvTag,
+                                MPI_Comm comm, MPI_Status status)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
-        doScatter(sConn, dConn, rootID, comm);
+        MPI_DataConnection rConn = new MPI_DataConnectionInt(_world, rData, rCount, false);
+        doSendrecv(sConn, sDatatype, destID, sendTag, rConn, rDatatype, srcID, recvTag, comm, status, false);
     }
 
-    protected void MPI_Scatter(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    // Send and receive double data in one operation
+    protected void MPI_Sendrecv(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int destID, int sendTag,
+                                double []rData, int rCount, MPI_DataConnection.MPI_Datatype rDatatype, int srcID, int recvTag,
+                                MPI_Comm comm, MPI_Status status)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
-        doScatter(sConn, dConn, rootID, comm);
+        MPI_DataConnection rConn = new MPI_DataConnectionDouble(_world, rData, rCount, false);
+        doSendrecv(sConn, sDatatype, destID, sendTag, rConn, rDatatype, srcID, recvTag, comm, status, false);
     }
 
-    protected void MPI_Scatter(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    // Send and receive string data in one operation
+    protected void MPI_Sendrecv(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int destID, int sendTag,
+                                String []rData, int rCount, MPI_DataConnection.MPI_Datatype rDatatype, int srcID, int recvTag,
+                                MPI_Comm comm, MPI_Status status)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
-        doScatter(sConn, dConn, rootID, comm);
+        MPI_DataConnection rConn = new MPI_DataConnectionString(_world, rData, rCount, false);
+        doSendrecv(sConn, sDatatype, destID, sendTag, rConn, rDatatype, srcID, recvTag, comm, status, false);
     }
 
-    ////////////////////////////////////////////////////////////////////
-    // The general MPI_Gather function
-    private void doGather(MPI_DataConnection sConn, MPI_DataConnection.MPI_Datatype sDatatype, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    // Send integer data and replace it with the data received
+    protected void MPI_Sendrecv_replace(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int sendTag,
+                                        int srcID, int recvTag, MPI_Comm comm, MPI_Status status)
     {
-        int actualLength = dConn.actualLength();
-        int neededLength = _world.numProcs() * dConn.count();
-        if (actualLength < neededLength)
-        {
-            _world.error(2, "The Gather destination array should have size " + neededLength + " but has size " + actualLength);
-        }
+        MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
+        doSendrecvReplace(conn, datatype, destID, sendTag, srcID, recvTag, comm, status);
+    }
+
+    // Send double data and replace it with the data received
+    protected void MPI_Sendrecv_replace(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int sendTag,
+                                        int srcID, int recvTag, MPI_Comm comm, MPI_Status status)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
+        doSendrecvReplace(conn, datatype, destID, sendTag, srcID, recvTag, comm, status);
+    }
+
+    // Send string data and replace it with the data received
+    protected void MPI_Sendrecv_replace(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int sendTag,
+                                        int srcID, int recvTag, MPI_Comm comm, MPI_Status status)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
+        doSendrecvReplace(conn, datatype, destID, sendTag, srcID, recvTag, comm, status);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Completing the non-blocking operations.  A completed request is made
+    // inactive (and unless it is persistent, is set to MPI_REQUEST_NULL in the
+    // arrays), and waiting on an inactive request returns at once.
+
+    // Block until the request has completed
+    protected void MPI_Wait(MPI_Request request, MPI_Status status)
+    {
+        if (request == MPI_REQUEST_NULL || !request.active())
+        {
+            return;
+        }
+        MPI_Call call = beforeCall(MPI_Trace.KIND_WAIT, null, -1, -1, null, request);
+        try
+        {
+            long traceStart = (_trace == null) ? 0 : System.nanoTime();
+            long wait = 0;
+            if (!request.complete())
+            {
+                if (request.collective() != null)
+                {
+                    waitForCollective(request);
+                }
+                else
+                {
+                    waitForMessage(request.message(), request.isSend(), 5);
+                }
+                wait = (_trace == null) ? 0 : System.nanoTime() - traceStart;
+            }
+            completeRequest(request, status);
+            if (_trace != null)
+            {
+                // The peer is the other side of a message (if known), and the tag its tag
+                MPI_PendingMessage msg = request.message();
+                MPI_Proc peer = (msg == null) ? null : (request.isSend() ? msg.to() : msg.from());
+                _trace.record(MPI_Trace.KIND_WAIT, (peer == null) ? -1 : peer.rank(), (msg == null) ? -1 : msg.tag(), 0,
+                              traceStart, System.nanoTime(), wait);
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
+
+    // Wait for a non-blocking collective.  The thread doing this process'
+    // part of it wakes us when it has finished.
+    private void waitForCollective(MPI_Request request)
+    {
+        long start = System.nanoTime();
+
+        // We are only blocked for it while it lacks members.  The last one to
+        // join marks it full before clearing the members' markers, so either
+        // it sees ours, or we see that it is full and clear it ourselves.
+        MPI_Collective collective = request.collective();
+        _imBlockedForCollective = collective;
+        if (collective.full())
+        {
+            clearImBlockedForCollective(collective);
+        }
+        while (!request.complete())
+        {
+            LockSupport.park(this);
+            // Interrupts are ignored, as they were when this used Object.wait()
+            Thread.interrupted();
+        }
+        _imBlockedForCollective = null;
+        _metrics.collectiveTime(System.nanoTime() - start);
+    }
+
+    // Return true (and complete the request) if the request has completed
+    protected boolean MPI_Test(MPI_Request request, MPI_Status status)
+    {
+        if (request == MPI_REQUEST_NULL || !request.active())
+        {
+            return true;
+        }
+        MPI_Call call = beforeCall(MPI_Trace.KIND_TEST, null, -1, -1, null, request);
+        try
+        {
+            if (!request.complete())
+            {
+                return false;
+            }
+            completeRequest(request, status);
+            return true;
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
+
+    // Block until all of the requests have completed
+    protected void MPI_Waitall(MPI_Request requests[], MPI_Status statuses[])
+    {
+        for (int i = 0 ; i < requests.length ; i++)
+        {
+            MPI_Wait(requests[i], (statuses == MPI_STATUSES_IGNORE) ? MPI_STATUS_IGNORE : statuses[i]);
+            freeIfDone(requests, i);
+        }
+    }
+
+    // Block until one of the requests has completed, and return its index.  If
+    // there are no active requests, this returns MPI_UNDEFINED.
+    protected int MPI_Waitany(MPI_Request requests[], MPI_Status status)
+    {
+        MPI_Call call = beforeCall(MPI_Trace.KIND_WAITANY, null, -1, -1, null, null);
+        try
+        {
+            while (true)
+            {
+                // See if one has already completed
+                boolean any = false;
+                for (int i = 0 ; i < requests.length ; i++)
+                {
+                    MPI_Request request = requests[i];
+                    if (request == MPI_REQUEST_NULL || !request.active())
+                    {
+                        continue;
+                    }
+                    any = true;
+                    if (request.complete())
+                    {
+                        completeRequest(request, status);
+                        freeIfDone(requests, i);
+                        return i;
+                    }
+                }
+                if (!any)
+                {
+                    return MPI_UNDEFINED;
+                }
+
+                // Mark ourselves as blocked on all of them, then park until one of
+                // them wakes us.  We can't be blocked for more than one process, so
+                // this isn't part of the deadlock checking.
+                boolean ready = false;
+                for (int i = 0 ; i < requests.length && !ready ; i++)
+                {
+                    MPI_Request request = requests[i];
+                    if (request != MPI_REQUEST_NULL && request.active())
+                    {
+                        ready = !setBlocked(request, true);
+                    }
+                }
+                long start = System.nanoTime();
+                MPI_Request completed = null;
+                while (!ready)
+                {
+                    LockSupport.park(this);
+                    Thread.interrupted();
+                    for (int i = 0 ; i < requests.length && !ready ; i++)
+                    {
+                        MPI_Request request = requests[i];
+                        ready = (request != MPI_REQUEST_NULL && request.active() && request.complete());
+                        if (ready)
+                        {
+                            completed = request;
+                        }
+                    }
+                }
+
+                // The time blocked goes to the kind of request that ended it
+                if (completed != null)
+                {
+                    long nanos = System.nanoTime() - start;
+                    if (completed.collective() != null)
+                    {
+                        _metrics.collectiveTime(nanos);
+                    }
+                    else
+                    {
+                        _metrics.blocked(completed.isSend(), nanos);
+                    }
+                }
+                for (int i = 0 ; i < requests.length ; i++)
+                {
+                    MPI_Request request = requests[i];
+                    if (request != MPI_REQUEST_NULL && request.active())
+                    {
+                        setBlocked(request, false);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
+
+    // Mark (or unmark) this process as blocked on the request's message.  This
+    // returns false if the message has already been delivered.  A collective
+    // wakes the process that started it whenever it finishes, so there is
+    // nothing to mark.
+    private boolean setBlocked(MPI_Request request, boolean blocked)
+    {
+        if (request.collective() != null)
+        {
+            return !request.complete();
+        }
+        MPI_PendingMessage msg = request.message();
+        synchronized(msg.to()._matchLock)
+        {
+            if (request.complete())
+            {
+                return false;
+            }
+            if (request.isSend())
+            {
+                if (blocked)
+                {
+                    msg.setSourceBlocked();
+                }
+                else
+                {
+                    msg.clearSourceBlocked();
+                }
+            }
+            else
+            {
+                if (blocked)
+                {
+                    msg.setDestinationBlocked();
+                }
+                else
+                {
+                    msg.clearDestinationBlocked();
+                }
+            }
+            return true;
+        }
+    }
+
+    private void completeRequest(MPI_Request request, MPI_Status status)
+    {
+        if (!request.isSend() && request.collective() == null)
+        {
+            fillStatus(request.message(), status);
+        }
+        request.setInactive();
+    }
+
+    // A completed request in an array is set to MPI_REQUEST_NULL, unless it is
+    // persistent (and so can be started again)
+    private void freeIfDone(MPI_Request requests[], int i)
+    {
+        if (requests[i] != MPI_REQUEST_NULL && !requests[i].persistent())
+        {
+            requests[i] = MPI_REQUEST_NULL;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Persistent requests.  MPI_Send_init and MPI_Recv_init bind the buffer,
+    // the other process, the tag and the datatype once, and MPI_Start begins
+    // the operation, which is then completed like any other request.  The
+    // request's message is reused by every start, so a steady-state loop of
+    // starts and waits doesn't allocate.
+    //
+    // A persistent send always uses rendezvous (the data is copied straight
+    // from the buffer into the receiver's), as its message can't be restarted
+    // while it is still queued.
+    private MPI_Request sendInit(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 5))
+        {
+            return MPI_REQUEST_NULL;
+        }
+        MPI_Proc dest = comm.member(destID);
+        if (dest == null)
+        {
+            _world.error(4, "No process with rank " + destID);
+            return MPI_REQUEST_NULL;
+        }
+        return new MPI_Request(true, conn, datatype, this, dest, destID, tag, comm);
+    }
+
+    private MPI_Request recvInit(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 5))
+        {
+            return MPI_REQUEST_NULL;
+        }
+        MPI_Proc src = null;
+        if (srcID != MPI_ANY_SOURCE)
+        {
+            src = comm.member(srcID);
+            if (src == null)
+            {
+                _world.error(4, "No process with rank " + srcID);
+                return MPI_REQUEST_NULL;
+            }
+        }
+        return new MPI_Request(false, conn, datatype, this, src, srcID, tag, comm);
+    }
+
+    // Create a persistent send for integer data
+    protected MPI_Request MPI_Send_init(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
+    {
+        return sendInit(new MPI_DataConnectionInt(_world, data, count, false), datatype, destID, tag, comm);
+    }
+
+    // Create a persistent send for double data
+    protected MPI_Request MPI_Send_init(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
+    {
+        return sendInit(new MPI_DataConnectionDouble(_world, data, count, false), datatype, destID, tag, comm);
+    }
+
+    // Create a persistent send for string data
+    protected MPI_Request MPI_Send_init(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int destID, int tag, MPI_Comm comm)
+    {
+        return sendInit(new MPI_DataConnectionString(_world, data, count, false), datatype, destID, tag, comm);
+    }
+
+    // Create a persistent receive for integer data
+    protected MPI_Request MPI_Recv_init(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
+    {
+        return recvInit(new MPI_DataConnectionInt(_world, data, count, false), datatype, srcID, tag, comm);
+    }
+
+    // Create a persistent receive for double data
+    protected MPI_Request MPI_Recv_init(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
+    {
+        return recvInit(new MPI_DataConnectionDouble(_world, data, count, false), datatype, srcID, tag, comm);
+    }
+
+    // Create a persistent receive for string data
+    protected MPI_Request MPI_Recv_init(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int srcID, int tag, MPI_Comm comm)
+    {
+        return recvInit(new MPI_DataConnectionString(_world, data, count, false), datatype, srcID, tag, comm);
+    }
+
+    // Start a persistent request
+    protected void MPI_Start(MPI_Request request)
+    {
+        if (request == MPI_REQUEST_NULL || !request.persistent())
+        {
+            _world.error(2, "Process " + _rank + " can only start a persistent request");
+            return;
+        }
+        if (request.active())
+        {
+            _world.error(2, "Process " + _rank + " cannot start a request that is already active");
+            return;
+        }
+        if (request.isSend())
+        {
+            doSend(request.conn(), request.datatype(), request.peer(), request.tag(), request.comm(), true, request);
+        }
+        else
+        {
+            doRecv(request.conn(), request.datatype(), request.peer(), request.tag(), request.comm(), MPI_STATUS_IGNORE, request);
+        }
+    }
+
+    // Start all of the persistent requests
+    protected void MPI_Startall(MPI_Request requests[])
+    {
+        for (int i = 0 ; i < requests.length ; i++)
+        {
+            MPI_Start(requests[i]);
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The probe functions.  These look for an unexpected send that a receive
+    // with this source and tag would match, and fill in the status (source,
+    // tag and count) without receiving it, so the receive buffer can be sized.
+
+    // Block until there is a matching message
+    protected void MPI_Probe(int srcID, int tag, MPI_Comm comm, MPI_Status status)
+    {
+        MPI_Call call = beforeCall(MPI_Trace.KIND_PROBE, null, srcID, tag, comm, null);
+        try
+        {
+            MPI_Proc src = checkProbe(srcID, comm);
+            if (src == null && (srcID != MPI_ANY_SOURCE || comm == MPI_COMM_NULL))
+            {
+                return;
+            }
+
+            boolean blocked = false;
+            while (true)
+            {
+                synchronized(_matchLock)
+                {
+                    if (probe(src, tag, comm, status))
+                    {
+                        _probeWaiter = null;
+                        break;
+                    }
+
+                    // Block until a sender queues a message for us.  Waiting for
+                    // a particular source could deadlock, so check for that.  A
+                    // sender that wakes us clears what we are blocked for, so it is
+                    // set again each time.
+                    if (!blocked && src != null)
+                    {
+                        checkForDeadlock(src, 4, false);
+                    }
+                    blocked = true;
+                    if (src != null)
+                    {
+                        setImBlockedForProc(src);
+                    }
+                    _probeWaiter = Thread.currentThread();
+                }
+                LockSupport.park(this);
+                // Interrupts are ignored, as they were when this used Object.wait()
+                Thread.interrupted();
+            }
+            if (blocked && src != null)
+            {
+                setImBlockedForProc(null);
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
+
+    // Return true (and fill in the status) if there is a matching message
+    protected boolean MPI_Iprobe(int srcID, int tag, MPI_Comm comm, MPI_Status status)
+    {
+        MPI_Call call = beforeCall(MPI_Trace.KIND_PROBE | MPI_Trace.NONBLOCKING, null, srcID, tag, comm, null);
+        try
+        {
+            MPI_Proc src = checkProbe(srcID, comm);
+            if (src == null && (srcID != MPI_ANY_SOURCE || comm == MPI_COMM_NULL))
+            {
+                return false;
+            }
+            synchronized(_matchLock)
+            {
+                return probe(src, tag, comm, status);
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
+            }
+        }
+    }
+
+    // The number of entries in a message, from the status of a probe or receive
+    protected int MPI_Get_count(MPI_Status status, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        return status.MPI_COUNT;
+    }
+
+    // Check the arguments to a probe, and return the source process (null for
+    // MPI_ANY_SOURCE, or if there was an error)
+    private MPI_Proc checkProbe(int srcID, MPI_Comm comm)
+    {
+        if (_state != MPI_ProcState.RUNNING)
+        {
+            _world.error(4, "Process " + _rank + " in state " + ProcStateToString(_state) + " but expected " + ProcStateToString(MPI_ProcState.RUNNING));
+        }
+        if (!checkComm(comm, 5))
+        {
+            return null;
+        }
+        if (srcID == MPI_ANY_SOURCE)
+        {
+            return null;
+        }
+        MPI_Proc src = comm.member(srcID);
+        if (src == null)
+        {
+            _world.error(4, "No process with rank " + srcID);
+        }
+        return src;
+    }
+
+    // Look for a matching message of any datatype, and take the oldest.  This
+    // is called with the matching lock held.
+    private boolean probe(MPI_Proc src, int tag, MPI_Comm comm, MPI_Status status)
+    {
+        int srcID = (src == null) ? MPI_ANY_SOURCE : src.rank();
+        MPI_PendingMessage found = null;
+        MPI_DataConnection.MPI_Datatype datatypes[] = MPI_DataConnection.MPI_Datatype.values();
+        for (int i = 0 ; i < datatypes.length ; i++)
+        {
+            MPI_PendingMessage msg = _queue.peekSend(comm.context(), srcID, tag, datatypes[i]);
+            if (msg != null && (found == null || msg.queueOrder() < found.queueOrder()))
+            {
+                found = msg;
+            }
+        }
+        if (found == null)
+        {
+            return false;
+        }
+        fillStatus(found, status);
+        return true;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Bcast function
+    private void doBcast(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.BCAST, MPI_ReduceOp.SUM, rootID, conn, null);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Bcast(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
+        doBcast(conn, datatype, rootID, comm);
+    }
+
+    protected void MPI_Bcast(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
+        doBcast(conn, datatype, rootID, comm);
+    }
+
+    protected void MPI_Bcast(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
+        doBcast(conn, datatype, rootID, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Scatter function
+    private void doScatter(MPI_DataConnection sConn, MPI_DataConnection dConn, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        int actualLength = sConn.actualLength();
+        int neededLength = comm.size() * sConn.count();
+        if (actualLength < neededLength)
+        {
+            _world.error(2, "The Scatter source array should have size " + neededLength + " but has size " + actualLength);
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.SCATTER, MPI_ReduceOp.SUM, rootID, sConn, dConn);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Scatter(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
+        doScatter(sConn, dConn, rootID, comm);
+    }
+
+    protected void MPI_Scatter(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
+        doScatter(sConn, dConn, rootID, comm);
+    }
+
+    protected void MPI_Scatter(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
+        doScatter(sConn, dConn, rootID, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Gather function
+    private void doGather(MPI_DataConnection sConn, MPI_DataConnection.MPI_Datatype sDatatype, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        int actualLength = dConn.actualLength();
+        int neededLength = comm.size() * dConn.count();
+        if (actualLength < neededLength)
+        {
+            _world.error(2, "The Gather destination array should have size " + neededLength + " but has size " + actualLength);
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.GATHER, MPI_ReduceOp.SUM, rootID, sConn, dConn);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Gather(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
+        doGather(sConn, sDatatype, dConn, dDatatype, rootID, comm);
+    }
+
+    protected void MPI_Gather(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
+        doGather(sConn, sDatatype, dConn, dDatatype, rootID, comm);
+    }
+
+    protected void MPI_Gather(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
+        doGather(sConn, sDatatype, dConn, dDatatype, rootID, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Allgather function.  With MPI_IN_PLACE, there is no
+    // source connection, and each process' data is taken from its own block of
+    // its destination.
+    private void doAllgather(MPI_DataConnection sConn, MPI_DataConnection.MPI_Datatype sDatatype, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        int actualLength = dConn.actualLength();
+        int neededLength = comm.size() * dConn.count();
+        if (actualLength < neededLength)
+        {
+            _world.error(2, "The Allgather destination array should have size " + neededLength + " but has size " + actualLength);
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.GATHERALL, MPI_ReduceOp.SUM, -1, sConn, dConn);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Allgather(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
+        doAllgather(sConn, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Allgather(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
+        doAllgather(sConn, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Allgather(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
+        doAllgather(sConn, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Allgather(MPI_InPlace sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
+        doAllgather(null, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Allgather(MPI_InPlace sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
+        doAllgather(null, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Allgather(MPI_InPlace sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
+        doAllgather(null, sDatatype, dConn, dDatatype, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Alltoall function.  Every process sends a block of
+    // sCount entries to each process (the block for rank i starts at
+    // i * sCount), and receives a block of dCount entries from each (the block
+    // from rank i goes at i * dCount).
+    private void doAlltoall(MPI_DataConnection sConn, MPI_DataConnection.MPI_Datatype sDatatype, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        int neededLength = comm.size() * sConn.count();
+        if (sConn.actualLength() < neededLength)
+        {
+            _world.error(2, "The Alltoall source array should have size " + neededLength + " but has size " + sConn.actualLength());
+        }
+        neededLength = comm.size() * dConn.count();
+        if (dConn.actualLength() < neededLength)
+        {
+            _world.error(2, "The Alltoall destination array should have size " + neededLength + " but has size " + dConn.actualLength());
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.ALLTOALL, MPI_ReduceOp.SUM, -1, sConn, dConn);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Alltoall(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
+        doAlltoall(sConn, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Alltoall(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
+        doAlltoall(sConn, sDatatype, dConn, dDatatype, comm);
+    }
+
+    protected void MPI_Alltoall(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
+        doAlltoall(sConn, sDatatype, dConn, dDatatype, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Alltoallv function.  As above, but the block for (or
+    // from) rank i has sCounts[i] (dCounts[i]) entries, and starts at
+    // sDispls[i] (dDispls[i]).
+    private void doAlltoallv(MPI_DataConnection sConn, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                             MPI_DataConnection dConn, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        int sBlocks[][] = checkBlocks("Alltoallv source", sConn, sCounts, sDispls, comm.size());
+        int dBlocks[][] = checkBlocks("Alltoallv destination", dConn, dCounts, dDispls, comm.size());
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.ALLTOALLV, MPI_Op.builtin(MPI_ReduceOp.SUM), -1, sConn, dConn,
+                        new MPI_Collective.Blocks(sBlocks[0], sBlocks[1], dBlocks[0], dBlocks[1]));
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    // Check that there is a count and a displacement for each process, and
+    // that the blocks they describe are in the array.  This returns the
+    // counts and displacements to use: these, or if any are wrong (which is
+    // reported), copies with those blocks made empty.  The process must still
+    // join the collective, as the others may already have, and would wait for
+    // it forever.
+    private int[][] checkBlocks(String what, MPI_DataConnection conn, int counts[], int displs[], int size)
+    {
+        int blocks[][] = { counts, displs };
+        if (counts == null || displs == null || counts.length < size || displs.length < size)
+        {
+            _world.error(5, "The " + what + " needs a count and a displacement for each of the " + size + " processes");
+            blocks[0] = new int[size];
+            blocks[1] = new int[size];
+            return blocks;
+        }
+        for (int i = 0 ; i < size ; i++)
+        {
+            if (counts[i] < 0 || displs[i] < 0 || displs[i] + counts[i] > conn.actualLength())
+            {
+                _world.error(5, "The " + what + " block for rank " + i + " (" + counts[i] + " entries at " + displs[i]
+                        + ") is not in the array of size " + conn.actualLength());
+                if (blocks[0] == counts)
+                {
+                    blocks[0] = Arrays.copyOf(counts, size);
+                    blocks[1] = Arrays.copyOf(displs, size);
+                }
+                blocks[0][i] = 0;
+                blocks[1][i] = 0;
+            }
+        }
+        return blocks;
+    }
+
+    protected void MPI_Alltoallv(int []sData, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                                 int []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dData.length, false);
+        doAlltoallv(sConn, sCounts, sDispls, sDatatype, dConn, dCounts, dDispls, dDatatype, comm);
+    }
+
+    protected void MPI_Alltoallv(double []sData, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                                 double []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dData.length, false);
+        doAlltoallv(sConn, sCounts, sDispls, sDatatype, dConn, dCounts, dDispls, dDatatype, comm);
+    }
+
+    protected void MPI_Alltoallv(String []sData, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                                 String []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dData.length, false);
+        doAlltoallv(sConn, sCounts, sDispls, sDatatype, dConn, dCounts, dDispls, dDatatype, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Scatterv function.  The root sends sCounts[i] entries,
+    // from sDispls[i] in its source, to rank i.  The counts and displacements
+    // (and the source) are only used at the root, so the others may pass null.
+    private void doScatterv(MPI_DataConnection sConn, int sCounts[], int sDispls[], MPI_DataConnection dConn, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        MPI_Collective.Blocks blocks = null;
+        if (comm.rankOf(this) == rootID)
+        {
+            if (sConn == null)
+            {
+                _world.error(4, "Process " + _rank + " is the Scatterv root, but has no source");
+                sConn = MPI_DataConnection.empty(_world, dConn.datatype());
+            }
+            int sBlocks[][] = checkBlocks("Scatterv source", sConn, sCounts, sDispls, comm.size());
+            blocks = new MPI_Collective.Blocks(sBlocks[0], sBlocks[1], null, null);
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.SCATTERV, MPI_Op.builtin(MPI_ReduceOp.SUM), rootID, sConn, dConn, blocks);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Scatterv(int []sData, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                                int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = (sData == null) ? null : new MPI_DataConnectionInt(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
+        doScatterv(sConn, sCounts, sDispls, dConn, rootID, comm);
+    }
+
+    protected void MPI_Scatterv(double []sData, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                                double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = (sData == null) ? null : new MPI_DataConnectionDouble(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
+        doScatterv(sConn, sCounts, sDispls, dConn, rootID, comm);
+    }
+
+    protected void MPI_Scatterv(String []sData, int sCounts[], int sDispls[], MPI_DataConnection.MPI_Datatype sDatatype,
+                                String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = (sData == null) ? null : new MPI_DataConnectionString(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
+        doScatterv(sConn, sCounts, sDispls, dConn, rootID, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Gatherv function.  The root receives dCounts[i] entries
+    // from rank i, at dDispls[i] in its destination.  As above, these are only
+    // used at the root.
+    private void doGatherv(MPI_DataConnection sConn, MPI_DataConnection dConn, int dCounts[], int dDispls[], int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        MPI_Collective.Blocks blocks = null;
+        if (comm.rankOf(this) == rootID)
+        {
+            if (dConn == null)
+            {
+                _world.error(4, "Process " + _rank + " is the Gatherv root, but has no destination");
+                dConn = MPI_DataConnection.empty(_world, sConn.datatype());
+            }
+            int dBlocks[][] = checkBlocks("Gatherv destination", dConn, dCounts, dDispls, comm.size());
+            blocks = new MPI_Collective.Blocks(null, null, dBlocks[0], dBlocks[1]);
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.GATHERV, MPI_Op.builtin(MPI_ReduceOp.SUM), rootID, sConn, dConn, blocks);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Gatherv(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                               int []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
+        MPI_DataConnection dConn = (dData == null) ? null : new MPI_DataConnectionInt(_world, dData, dData.length, false);
+        doGatherv(sConn, dConn, dCounts, dDispls, rootID, comm);
+    }
+
+    protected void MPI_Gatherv(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                               double []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
+        MPI_DataConnection dConn = (dData == null) ? null : new MPI_DataConnectionDouble(_world, dData, dData.length, false);
+        doGatherv(sConn, dConn, dCounts, dDispls, rootID, comm);
+    }
+
+    protected void MPI_Gatherv(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                               String []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
+        MPI_DataConnection dConn = (dData == null) ? null : new MPI_DataConnectionString(_world, dData, dData.length, false);
+        doGatherv(sConn, dConn, dCounts, dDispls, rootID, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Allgatherv function.  Every process receives dCounts[i]
+    // entries from rank i, at dDispls[i] in its destination.  With
+    // MPI_IN_PLACE, each process' data is already in its own block.
+    private void doAllgatherv(MPI_DataConnection sConn, MPI_DataConnection dConn, int dCounts[], int dDispls[], MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        int dBlocks[][] = checkBlocks("Allgatherv destination", dConn, dCounts, dDispls, comm.size());
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.GATHERALLV, MPI_Op.builtin(MPI_ReduceOp.SUM), -1, sConn, dConn,
+                        new MPI_Collective.Blocks(null, null, dBlocks[0], dBlocks[1]));
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Allgatherv(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                                  int []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dData.length, false);
+        doAllgatherv(sConn, dConn, dCounts, dDispls, comm);
+    }
+
+    protected void MPI_Allgatherv(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                                  double []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dData.length, false);
+        doAllgatherv(sConn, dConn, dCounts, dDispls, comm);
+    }
+
+    protected void MPI_Allgatherv(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                                  String []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dData.length, false);
+        doAllgatherv(sConn, dConn, dCounts, dDispls, comm);
+    }
+
+    protected void MPI_Allgatherv(MPI_InPlace sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                                  int []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dData.length, false);
+        doAllgatherv(null, dConn, dCounts, dDispls, comm);
+    }
+
+    protected void MPI_Allgatherv(MPI_InPlace sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                                  double []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dData.length, false);
+        doAllgatherv(null, dConn, dCounts, dDispls, comm);
+    }
+
+    protected void MPI_Allgatherv(MPI_InPlace sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype,
+                                  String []dData, int dCounts[], int dDispls[], MPI_DataConnection.MPI_Datatype dDatatype, MPI_Comm comm)
+    {
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dData.length, false);
+        doAllgatherv(null, dConn, dCounts, dDispls, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Make a user reduction operation, for MPI_Reduce, MPI_Allreduce and the
+    // other reductions (see MPI_Op).  'commute' says whether the function is commutative.
+    protected MPI_Op MPI_Op_create(MPI_Op.MPI_User_function function, boolean commute)
+    {
+        if (function == null)
+        {
+            _world.error(2, "Process " + _rank + " MPI_Op_create needs a function");
+            return null;
+        }
+        return new MPI_Op(function, commute);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Reduce function
+    private void doReduce(MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
+        _state = MPI_ProcState.BLOCKED;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.REDUCE, op, rootID, sConn, dConn);
+        _state = MPI_ProcState.RUNNING;
+    }
+
+    protected void MPI_Reduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doReduce(sConn, dConn, datatype, MPI_Op.builtin(op), rootID, comm);
+    }
+
+    protected void MPI_Reduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doReduce(sConn, dConn, datatype, MPI_Op.builtin(op), rootID, comm);
+    }
+
+    protected void MPI_Reduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doReduce(sConn, dConn, datatype, MPI_Op.builtin(op), rootID, comm);
+    }
+
+    protected void MPI_Reduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doReduce(sConn, dConn, datatype, op, rootID, comm);
+    }
+
+    protected void MPI_Reduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doReduce(sConn, dConn, datatype, op, rootID, comm);
+    }
+
+    protected void MPI_Reduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doReduce(sConn, dConn, datatype, op, rootID, comm);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The general MPI_Allreduce function
+    private void doAllreduce(MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
         _state = MPI_ProcState.BLOCKED;
-        _collectiveConn = sConn;
-        _collectiveConn2 = dConn;
-        startCollective(MPI_Collective.MPI_CollectiveType.GATHER, MPI_ReduceOp.SUM, _world.findProc(rootID));
-        _collectiveConn = null;
-        _collectiveConn2 = null;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.REDUCEALL, op, -1, sConn, dConn);
         _state = MPI_ProcState.RUNNING;
     }
 
-    protected void MPI_Gather(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    protected void MPI_Allreduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
-        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
-        doGather(sConn, sDatatype, dConn, dDatatype, rootID, comm);
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doAllreduce(sConn, dConn, datatype, MPI_Op.builtin(op), comm);
     }
 
-    protected void MPI_Gather(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    protected void MPI_Allreduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
-        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
-        doGather(sConn, sDatatype, dConn, dDatatype, rootID, comm);
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doAllreduce(sConn, dConn, datatype, MPI_Op.builtin(op), comm);
     }
 
-    protected void MPI_Gather(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int rootID, int comm)
+    protected void MPI_Allreduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
-        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
-        doGather(sConn, sDatatype, dConn, dDatatype, rootID, comm);
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doAllreduce(sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected void MPI_Allreduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doAllreduce(sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Allreduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doAllreduce(sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Allreduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doAllreduce(sConn, dConn, datatype, op, comm);
     }
 
     ////////////////////////////////////////////////////////////////////
-    // The general MPI_Allgather function
-    private void doAllgather(MPI_DataConnection sConn, MPI_DataConnection.MPI_Datatype sDatatype, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype dDatatype, int comm)
+    // The general MPI_Reduce_scatter function.  The source has a block for
+    // each process, one after the other, and rank i's block has counts[i]
+    // entries.  Each process gets its own block reduced over all of the
+    // processes.  The counts must be the same on every process.
+    private void doReduceScatter(MPI_DataConnection sConn, MPI_DataConnection dConn, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
     {
-        int actualLength = dConn.actualLength();
-        int neededLength = _world.numProcs() * dConn.count();
-        if (actualLength < neededLength)
+        if (!checkComm(comm, 4))
         {
-            _world.error(2, "The Allgather destination array should have size " + neededLength + " but has size " + actualLength);
+            return;
+        }
+        if (!MPI_DataConnection.canReduceRange(op))
+        {
+            _world.error(4, "Process " + _rank + " MPI_Reduce_scatter can't be done with " + op);
+            return;
+        }
+        int size = comm.size();
+        int displs[] = new int[size];
+        for (int i = 1 ; counts != null && i < size && i < counts.length ; i++)
+        {
+            displs[i] = displs[i - 1] + counts[i - 1];
+        }
+        // A process with bad counts, or a block that doesn't fit, reports it
+        // and still joins in (with that block cut down), so the others finish
+        int blocks[][] = checkBlocks("Reduce_scatter source", sConn, counts, displs, size);
+        int rank = comm.rankOf(this);
+        if (blocks[0][rank] > dConn.actualLength())
+        {
+            _world.error(4, "Process " + _rank + " MPI_Reduce_scatter block of " + blocks[0][rank]
+                    + " entries doesn't fit in the destination of size " + dConn.actualLength());
+            blocks[0] = Arrays.copyOf(blocks[0], size);
+            blocks[0][rank] = dConn.actualLength();
         }
         _state = MPI_ProcState.BLOCKED;
-        _collectiveConn = sConn;
-        _collectiveConn2 = dConn;
-        startCollective(MPI_Collective.MPI_CollectiveType.GATHERALL, MPI_ReduceOp.SUM, null);
-        _collectiveConn = null;
-        _collectiveConn2 = null;
+        startCollective(comm, MPI_Collective.MPI_CollectiveType.REDUCE_SCATTER, op, -1, sConn, dConn,
+                        new MPI_Collective.Blocks(blocks[0], blocks[1], null, null));
         _state = MPI_ProcState.RUNNING;
     }
 
-    protected void MPI_Allgather(int []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, int []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int comm)
+    protected void MPI_Reduce_scatter(int []sData, int []dData, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
-        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dCount, false);
-        doAllgather(sConn, sDatatype, dConn, dDatatype, comm);
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dData.length, false);
+        doReduceScatter(sConn, dConn, counts, datatype, MPI_Op.builtin(op), comm);
     }
 
-    protected void MPI_Allgather(double []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, double []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int comm)
+    protected void MPI_Reduce_scatter(double []sData, double []dData, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
-        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dCount, false);
-        doAllgather(sConn, sDatatype, dConn, dDatatype, comm);
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dData.length, false);
+        doReduceScatter(sConn, dConn, counts, datatype, MPI_Op.builtin(op), comm);
     }
 
-    protected void MPI_Allgather(String []sData, int sCount, MPI_DataConnection.MPI_Datatype sDatatype, String []dData, int dCount, MPI_DataConnection.MPI_Datatype dDatatype, int comm)
+    protected void MPI_Reduce_scatter(String []sData, String []dData, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
-        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sCount, false);
-        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dCount, false);
-        doAllgather(sConn, sDatatype, dConn, dDatatype, comm);
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dData.length, false);
+        doReduceScatter(sConn, dConn, counts, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected void MPI_Reduce_scatter(int []sData, int []dData, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, dData.length, false);
+        doReduceScatter(sConn, dConn, counts, datatype, op, comm);
+    }
+
+    protected void MPI_Reduce_scatter(double []sData, double []dData, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, dData.length, false);
+        doReduceScatter(sConn, dConn, counts, datatype, op, comm);
+    }
+
+    protected void MPI_Reduce_scatter(String []sData, String []dData, int counts[], MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, sData.length, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, dData.length, false);
+        doReduceScatter(sConn, dConn, counts, datatype, op, comm);
     }
 
     ////////////////////////////////////////////////////////////////////
-    // The general MPI_Reduce function
-    private void doReduce(MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, int comm)
+    // The general MPI_Scan and MPI_Exscan functions.  Rank r's destination
+    // gets the reduction of the sources of ranks 0 to r (MPI_Scan), or of
+    // ranks 0 to r - 1 (MPI_Exscan, which leaves rank 0's destination alone).
+    private void doScan(MPI_Collective.MPI_CollectiveType type, MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
     {
+        if (!checkComm(comm, 4))
+        {
+            return;
+        }
         _state = MPI_ProcState.BLOCKED;
-        _collectiveConn = sConn;
-        _collectiveConn2 = dConn;
-        startCollective(MPI_Collective.MPI_CollectiveType.REDUCE, op, _world.findProc(rootID));
-        _collectiveConn = null;
-        _collectiveConn2 = null;
+        startCollective(comm, type, op, -1, sConn, dConn);
         _state = MPI_ProcState.RUNNING;
     }
 
-    protected void MPI_Reduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, int comm)
+    protected void MPI_Scan(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
         MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
-        doReduce(sConn, dConn, datatype, op, rootID, comm);
+        doScan(MPI_Collective.MPI_CollectiveType.SCAN, sConn, dConn, datatype, MPI_Op.builtin(op), comm);
     }
 
-    protected void MPI_Reduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, int comm)
+    protected void MPI_Scan(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
         MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
-        doReduce(sConn, dConn, datatype, op, rootID, comm);
+        doScan(MPI_Collective.MPI_CollectiveType.SCAN, sConn, dConn, datatype, MPI_Op.builtin(op), comm);
     }
 
-    protected void MPI_Reduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, int comm)
+    protected void MPI_Scan(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
         MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
-        doReduce(sConn, dConn, datatype, op, rootID, comm);
+        doScan(MPI_Collective.MPI_CollectiveType.SCAN, sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected void MPI_Scan(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.SCAN, sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Scan(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.SCAN, sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Scan(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.SCAN, sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Exscan(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.EXSCAN, sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected void MPI_Exscan(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.EXSCAN, sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected void MPI_Exscan(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.EXSCAN, sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected void MPI_Exscan(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.EXSCAN, sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Exscan(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.EXSCAN, sConn, dConn, datatype, op, comm);
+    }
+
+    protected void MPI_Exscan(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        doScan(MPI_Collective.MPI_CollectiveType.EXSCAN, sConn, dConn, datatype, op, comm);
     }
 
     ////////////////////////////////////////////////////////////////////
-    // The general MPI_Allreduce function
-    private void doAllreduce(MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int comm)
+    // The non-blocking collectives.  Each returns a request at once, and the
+    // collective goes on in the background (see startNonblocking) until it is
+    // completed by MPI_Wait, MPI_Test, MPI_Waitall or MPI_Waitany.  The
+    // buffers mustn't be touched until then.
+    protected MPI_Request MPI_Ibarrier(MPI_Comm comm)
     {
-        _state = MPI_ProcState.BLOCKED;
-        _collectiveConn = sConn;
-        _collectiveConn2 = dConn;
-        startCollective(MPI_Collective.MPI_CollectiveType.REDUCEALL, op, null);
-        _collectiveConn = null;
-        _collectiveConn2 = null;
-        _state = MPI_ProcState.RUNNING;
+        if (!checkComm(comm, 3))
+        {
+            return MPI_REQUEST_NULL;
+        }
+        return startNonblocking(comm, MPI_Collective.MPI_CollectiveType.BARRIER, MPI_Op.builtin(MPI_ReduceOp.SUM), -1, null, null);
+    }
+
+    private MPI_Request doIbcast(MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return MPI_REQUEST_NULL;
+        }
+        return startNonblocking(comm, MPI_Collective.MPI_CollectiveType.BCAST, MPI_Op.builtin(MPI_ReduceOp.SUM), rootID, conn, null);
+    }
+
+    protected MPI_Request MPI_Ibcast(int []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionInt(_world, data, count, false);
+        return doIbcast(conn, datatype, rootID, comm);
+    }
+
+    protected MPI_Request MPI_Ibcast(double []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionDouble(_world, data, count, false);
+        return doIbcast(conn, datatype, rootID, comm);
+    }
+
+    protected MPI_Request MPI_Ibcast(String []data, int count, MPI_DataConnection.MPI_Datatype datatype, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection conn = new MPI_DataConnectionString(_world, data, count, false);
+        return doIbcast(conn, datatype, rootID, comm);
+    }
+
+    private MPI_Request doIreduce(MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return MPI_REQUEST_NULL;
+        }
+        return startNonblocking(comm, MPI_Collective.MPI_CollectiveType.REDUCE, op, rootID, sConn, dConn);
     }
 
-    protected void MPI_Allreduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int comm)
+    protected MPI_Request MPI_Ireduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, MPI_Comm comm)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
         MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
-        doAllreduce(sConn, dConn, datatype, op, comm);
+        return doIreduce(sConn, dConn, datatype, MPI_Op.builtin(op), rootID, comm);
     }
 
-    protected void MPI_Allreduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int comm)
+    protected MPI_Request MPI_Ireduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, MPI_Comm comm)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
         MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
-        doAllreduce(sConn, dConn, datatype, op, comm);
+        return doIreduce(sConn, dConn, datatype, MPI_Op.builtin(op), rootID, comm);
     }
 
-    protected void MPI_Allreduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int comm)
+    protected MPI_Request MPI_Ireduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, int rootID, MPI_Comm comm)
     {
         MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
         MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
-        doAllreduce(sConn, dConn, datatype, op, comm);
+        return doIreduce(sConn, dConn, datatype, MPI_Op.builtin(op), rootID, comm);
+    }
+
+    protected MPI_Request MPI_Ireduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        return doIreduce(sConn, dConn, datatype, op, rootID, comm);
+    }
+
+    protected MPI_Request MPI_Ireduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        return doIreduce(sConn, dConn, datatype, op, rootID, comm);
+    }
+
+    protected MPI_Request MPI_Ireduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, int rootID, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        return doIreduce(sConn, dConn, datatype, op, rootID, comm);
+    }
+
+    private MPI_Request doIallreduce(MPI_DataConnection sConn, MPI_DataConnection dConn, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        if (!checkComm(comm, 4))
+        {
+            return MPI_REQUEST_NULL;
+        }
+        return startNonblocking(comm, MPI_Collective.MPI_CollectiveType.REDUCEALL, op, -1, sConn, dConn);
+    }
+
+    protected MPI_Request MPI_Iallreduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        return doIallreduce(sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected MPI_Request MPI_Iallreduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        return doIallreduce(sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected MPI_Request MPI_Iallreduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_ReduceOp op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        return doIallreduce(sConn, dConn, datatype, MPI_Op.builtin(op), comm);
+    }
+
+    protected MPI_Request MPI_Iallreduce(int []sData, int []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionInt(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionInt(_world, dData, count, false);
+        return doIallreduce(sConn, dConn, datatype, op, comm);
+    }
+
+    protected MPI_Request MPI_Iallreduce(double []sData, double []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionDouble(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionDouble(_world, dData, count, false);
+        return doIallreduce(sConn, dConn, datatype, op, comm);
+    }
+
+    protected MPI_Request MPI_Iallreduce(String []sData, String []dData, int count, MPI_DataConnection.MPI_Datatype datatype, MPI_Op op, MPI_Comm comm)
+    {
+        MPI_DataConnection sConn = new MPI_DataConnectionString(_world, sData, count, false);
+        MPI_DataConnection dConn = new MPI_DataConnectionString(_world, dData, count, false);
+        return doIallreduce(sConn, dConn, datatype, op, comm);
     }
 
     ////////////////////////////////////////////////////////////////////
-    // Start a collective
-    private void startCollective(MPI_Collective.MPI_CollectiveType type, MPI_ReduceOp op, MPI_Proc root)
+    // Start a collective on a communicator ('root' is a rank in it, or -1 if
+    // there is none), with this process' source and destination buffers.
+    // There is no world-wide lock here: the collective is found in the world
+    // by its key (the communicator's context and this process' count of
+    // collectives on it) or added there, the processes join it by counting
+    // down, and each does its own part of the work once they all have.
+    private void startCollective(MPI_Comm comm, MPI_Collective.MPI_CollectiveType type, MPI_ReduceOp op, int root,
+                                 MPI_DataConnection conn, MPI_DataConnection conn2)
+    {
+        startCollective(comm, type, MPI_Op.builtin(op), root, conn, conn2);
+    }
+
+    private void startCollective(MPI_Comm comm, MPI_Collective.MPI_CollectiveType type, MPI_Op op, int root,
+                                 MPI_DataConnection conn, MPI_DataConnection conn2)
     {
-        synchronized(_world)
+        startCollective(comm, type, op, root, conn, conn2, null);
+    }
+
+    private void startCollective(MPI_Comm comm, MPI_Collective.MPI_CollectiveType type, MPI_Op op, int root,
+                                 MPI_DataConnection conn, MPI_DataConnection conn2, MPI_Collective.Blocks blocks)
+    {
+        MPI_Call call = beforeCall(MPI_Trace.KIND_COLLECTIVE + type.ordinal(), (conn != null) ? conn : conn2, root, -1, comm, null);
+        try
         {
-            // See if anybody is blocking for me, which would be an error
-            int len = _world.numProcs();
-            for (int i = 0 ; i < len; i++)
-            {
-                MPI_Proc proc = _world.findProc(i);
-                if (proc._imBlockedForProc == this)
-                {
-                    _world.error(4, "Process " + _rank + " cannot enter " + MPI_Collective.typeAsString(type) + " because process "
-                        + proc._rank + " is blocked on it");
-                    return;
-                }
-            }
+            long traceStart = (_trace == null) ? 0 : System.nanoTime();
 
-            // There can only be one collective at a time.  See if there is one already
-            MPI_Collective collective = _world.collective();
-            if (collective != null)
+            // See if anybody is blocking for me, which would be an error
+            if (_numBlockedForMe.get() > 0)
             {
-                if (collective.type() != type)
+                int len = _world.numProcs();
+                for (int i = 0 ; i < len; i++)
                 {
-                    _world.error(4, "Process " + _rank + " cannot start " + MPI_Collective.typeAsString(type) + " because there is already a "
-                            + MPI_Collective.typeAsString(collective.type()) + " started");
-                    return;
+                    MPI_Proc proc = _world.findProc(i);
+                    if (proc._imBlockedForProc == this)
+                    {
+                        _world.error(4, "Process " + _rank + " cannot enter " + MPI_Collective.typeAsString(type) + " because process "
+                            + proc._rank + " is blocked on it");
+                        return;
+                    }
                 }
             }
-            else
-            {
-                collective = new MPI_Collective(_world, type, op, root);
-                _world.setCollective(collective);
-            }
 
-            // Join in to the collective.  If this returns 'true', the collective was full and has fired.
-            if (collective.joinIn())
+            MPI_Collective collective = findCollective(comm, type, op, root);
+            if (collective == null)
             {
-                // The collective fired, so return
-                _world.notifyAll();
                 return;
             }
 
-            // The collective is not yet full, so wait for it.
+            // Mark ourselves as blocked before joining, so the last process in
+            // (which clears this for everybody) can't race with us setting it.
             _imBlockedForCollective = collective;
-            while (collective.done() == false)
+
+            // Join in to the collective, do our part, and wait for the others to finish theirs
+            long start = System.nanoTime();
+            collective.run(this, comm.rankOf(this), conn, conn2, blocks);
+            _imBlockedForCollective = null;
+            long end = System.nanoTime();
+            _metrics.collectiveTime(end - start);
+            if (_trace != null)
             {
-                try
-                {
-                    _world.wait();
-                }
-                catch (InterruptedException e)
-                {
-                    // Empty
-                }
+                traceCollective(type, root, conn, conn2, traceStart, end, end - start, false);
+            }
+        }
+        finally
+        {
+            if (call != null)
+            {
+                afterCall(call);
             }
-            _imBlockedForCollective = null;
         }
     }
 
-    // Return a pending message with the given source, tag, and datatype.  Actually,
-    // if the source and tag match, this is the correct message, but if the datatype
-    // is wrong, we report the error.
-    //
-    // If this finds the message, it removes the message from the linked list.
-    private MPI_PendingMessage getDstMessage(int sourceID, int tag, MPI_DataConnection.MPI_Datatype datatype)
+    // Record a collective.  The peer is the root (a rank in the communicator)
+    // and the count is this process' source count (or destination count).
+    private void traceCollective(MPI_Collective.MPI_CollectiveType type, int root, MPI_DataConnection conn, MPI_DataConnection conn2,
+                                 long start, long end, long wait, boolean nonblocking)
+    {
+        int kind = MPI_Trace.KIND_COLLECTIVE + type.ordinal();
+        int count = (conn != null) ? conn.count() : ((conn2 != null) ? conn2.count() : 0);
+        _trace.record(nonblocking ? (kind | MPI_Trace.NONBLOCKING) : kind, root, -1, count, start, end, wait);
+    }
+
+    // Start a collective without waiting for it to finish.  The collective is
+    // found (or added) here, so it takes its place in this process' order of
+    // collectives on the communicator, but this process' part is done on a
+    // thread of its own, which completes the request when everybody is done.
+    // Until then the buffers belong to the collective.
+    private MPI_Request startNonblocking(MPI_Comm comm, MPI_Collective.MPI_CollectiveType type, MPI_Op op, int root,
+                                         final MPI_DataConnection conn, final MPI_DataConnection conn2)
     {
-        MPI_PendingMessage msg;
-        for (msg = _messages; msg != null; msg = msg.next())
+        MPI_Call call = beforeCall((MPI_Trace.KIND_COLLECTIVE + type.ordinal()) | MPI_Trace.NONBLOCKING, (conn != null) ? conn : conn2, root, -1, comm, null);
+        try
         {
-            if (sourceID != MPI_ANY_SOURCE && msg.from() != null && msg.from().rank() != sourceID)
+            long traceStart = (_trace == null) ? 0 : System.nanoTime();
+            final MPI_Collective collective = findCollective(comm, type, op, root);
+            if (collective == null)
+            {
+                return MPI_REQUEST_NULL;
+            }
+            final int myRank = comm.rankOf(this);
+            final MPI_Request request = new MPI_Request(collective);
+            final Thread owner = Thread.currentThread();
+            _world.runInBackground(new Runnable()
+            {
+                public void run()
+                {
+                    collective.run(MPI_Proc.this, myRank, conn, conn2, null);
+                    request.finish();
+                    LockSupport.unpark(owner);
+                }
+            });
+            if (call != null)
             {
-                continue;
+                call.setRequest(request);
             }
-            if (tag != MPI_ANY_TAG && msg.tag() != MPI_ANY_TAG && msg.tag() != tag)
+            if (_trace != null)
             {
-                continue;
+                traceCollective(type, root, conn, conn2, traceStart, System.nanoTime(), 0, true);
             }
-            if (msg.datatype() != datatype) // return either source or dest datatype
+            return request;
+        }
+        finally
+        {
+            if (call != null)
             {
-                continue;
+                afterCall(call);
             }
-            return msg;
         }
-        return null;
     }
 
-    // We have finished sending a message, so remove it from the list
-    public void removeMessage(MPI_PendingMessage msg)
+    // Find the collective this process starts next on a communicator, or add
+    // it.  This returns null (after reporting the error) if the collective
+    // can't be started.
+    private MPI_Collective findCollective(MPI_Comm comm, MPI_Collective.MPI_CollectiveType type, MPI_Op op, int root)
     {
-        if (_messages == msg)
+        int myRank = (comm == MPI_COMM_NULL) ? -1 : comm.rankOf(this);
+        if (myRank < 0)
         {
-            _messages = msg.next();
-            return;
+            _world.error(5, "Process " + _rank + " cannot start " + MPI_Collective.typeAsString(type) + " on a communicator it isn't in");
+            return null;
         }
-        for (MPI_PendingMessage q = _messages; q != null; q = q.next())
+        if (root >= comm.size() || root < (MPI_Collective.hasRoot(type) ? 0 : -1))
         {
-            if (q.next() == msg)
-            {
-                q.removeNext();
-                return;
-            }
+            _world.error(5, "Process " + _rank + " cannot start " + MPI_Collective.typeAsString(type) + " with root " + root
+                    + " on a communicator of size " + comm.size());
+            return null;
         }
-    }
 
-    // Create a new pending message for this destination
-    private MPI_PendingMessage createNewMessage(MPI_Proc source, int tag)
-    {
-        MPI_PendingMessage msg = new MPI_PendingMessage(source, this, tag, _messages);
-        _messages = msg;
-        return(msg);
+        // See if another process has already started this collective, and if
+        // not, start it
+        long key = comm.nextCollective(myRank);
+        MPI_Collective collective = _world.findCollective(key);
+        if (collective == null)
+        {
+            collective = _world.addCollective(key, new MPI_Collective(_world, comm, key, type, op, root));
+        }
+        if (collective.type() != type || collective.root() != root)
+        {
+            _world.error(5, "Process " + _rank + " cannot start " + MPI_Collective.typeAsString(type) + " because the other processes started a "
+                    + MPI_Collective.typeAsString(collective.type()) + ((collective.root() != root) ? " with a different root" : ""));
+            return null;
+        }
+        _metrics.collectiveStarted(type);
+        return collective;
     }
 
     ////////////////////////////////////////////////////////////////////
-    // Print the status of this processor
+    // Print the status of this processor.  This is diagnostic only, and is
+    // called while other locks are held, so it reads the messages without
+    // taking the matching lock.
     public void status(boolean sendToErr)
     {
         MPI_Proc other = _imBlockedForProc;
@@ -871,6 +2580,7 @@ public class MPI_Proc implements Runnable
         {
             msg += ", blocked for " + _imBlockedForProc._rank;
         }
+        msg += ", queue depth " + _queue.numUnexpected() + " unexpected, " + _queue.numPosted() + " posted";
         if (sendToErr)
         {
             _world.error(-1, msg);
@@ -880,10 +2590,7 @@ public class MPI_Proc implements Runnable
             System.out.println(msg);
         }
 
-        for (MPI_PendingMessage pnd = _messages; pnd != null; pnd = pnd.next())
-        {
-            pnd.status(sendToErr, _world);
-        }
+        _queue.status(sendToErr, _world);
     }
 
     //------------------------------------------------------------------
@@ -1,10 +1,18 @@
 public class MPI_ProcFactory
 {
+    // Makes the processes of a world that runs some other program than the
+    // one below (see the MPI_World constructor that takes one)
+    public interface MPI_ProcMaker
+    {
+        MPI_Proc make(MPI_World world, int rank);
+    }
+
     public static MPI_Proc getProc(MPI_World world, int rank)
     {
         // TBD -- This code should call your class' constructor
-        MPI_Proc proc = new MPI_SampleProc(world, rank);
-        Thread thread = new Thread(proc);
+        MPI_ProcMaker maker = world.procMaker();
+        MPI_Proc proc = (maker != null) ? maker.make(world, rank) : new MPI_SampleProc(world, rank);
+        Thread thread = world.newThread(proc);
         proc.setThread(thread);
         return proc;
     }
@@ -0,0 +1,137 @@
+// The element-wise reductions used by reduceFrom, one loop per operation.
+//
+// The operation is chosen once per call, rather than for each element, so each
+// loop is a plain pass over two arrays with nothing else in its body.  HotSpot's
+// JIT can compile loops like that to SIMD instructions itself, which it does for
+// the sums and products; the others (the doubles' maxes and mins, and the logical
+// operations, are conditionals) may stay scalar, but still gain from not choosing
+// the operation per element.  This avoids the incubating Vector API, which would
+// have to be added as a module everywhere the library is compiled and run.
+//
+// MAXLOC and MINLOC carry a location along with the value, so they are not here;
+// the data connections do them element by element.
+
+public class MPI_ReduceKernels
+{
+    // Combine src into dst (dst[d + i] = dst[d + i] op src[s + i], for i from 0 to
+    // len, where d and s are the offsets).  This returns false if the operation
+    // isn't one of these kernels.
+    static public boolean reduce(int dst[], int dstOffset, int src[], int srcOffset, int len, MPI_Proc.MPI_ReduceOp op)
+    {
+        int shift = srcOffset - dstOffset;
+        int end = dstOffset + len;
+        switch (op)
+        {
+        case MAX:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] = Math.max(dst[i], src[i + shift]);
+            }
+            return true;
+        case MIN:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] = Math.min(dst[i], src[i + shift]);
+            }
+            return true;
+        case SUM:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] += src[i + shift];
+            }
+            return true;
+        case PROD:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] *= src[i + shift];
+            }
+            return true;
+        case LAND:
+            // (x | -x) has its top bit set exactly when x isn't 0, so the
+            // logical operations need no branches
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                int a = dst[i];
+                int b = src[i + shift];
+                dst[i] = ((a | -a) & (b | -b)) >>> 31;
+            }
+            return true;
+        case LOR:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                int ab = dst[i] | src[i + shift];
+                dst[i] = (ab | -ab) >>> 31;
+            }
+            return true;
+        case BAND:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] &= src[i + shift];
+            }
+            return true;
+        case BOR:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] |= src[i + shift];
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    // As above, for doubles.  The bitwise operations have no meaning for
+    // doubles, so they are left to the caller (which reports an error).  MAX
+    // and MIN compare as the element-wise code always has (so a NaN in dst is
+    // replaced), rather than as Math.max and Math.min do.
+    static public boolean reduce(double dst[], int dstOffset, double src[], int srcOffset, int len, MPI_Proc.MPI_ReduceOp op)
+    {
+        int shift = srcOffset - dstOffset;
+        int end = dstOffset + len;
+        switch (op)
+        {
+        case MAX:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                double a = dst[i];
+                double b = src[i + shift];
+                dst[i] = (a > b) ? a : b;
+            }
+            return true;
+        case MIN:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                double a = dst[i];
+                double b = src[i + shift];
+                dst[i] = (a < b) ? a : b;
+            }
+            return true;
+        case SUM:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] += src[i + shift];
+            }
+            return true;
+        case PROD:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] *= src[i + shift];
+            }
+            return true;
+        case LAND:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] = (dst[i] != 0.0 && src[i + shift] != 0.0) ? 1.0 : 0.0;
+            }
+            return true;
+        case LOR:
+            for (int i = dstOffset ; i < end ; i++)
+            {
+                dst[i] = (dst[i] != 0.0 || src[i + shift] != 0.0) ? 1.0 : 0.0;
+            }
+            return true;
+        default:
+            return false;
+        }
+    }
+}
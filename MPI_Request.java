@@ -0,0 +1,104 @@
+// An MPI_Request is the handle for a non-blocking operation.  It is returned by
+// MPI_Isend and MPI_Irecv, and is completed by MPI_Wait, MPI_Test, MPI_Waitall
+// or MPI_Waitany.
+//
+// The request just holds on to the MPI_PendingMessage for the operation; the
+// message knows when its data has been transferred.  If the operation matched
+// a message that was already waiting, it completed when it was started, and
+// the request remembers that rather than asking the message (which belongs to
+// the other process, and may already have been restarted by it).
+//
+// A persistent request (from MPI_Send_init or MPI_Recv_init) also holds the
+// arguments of the operation, and its own message.  Each MPI_Start reuses
+// them, so a loop of starts and waits doesn't allocate anything.
+//
+// A request for a non-blocking collective (such as MPI_Iallreduce) has no
+// message.  It holds the collective, and is finished by the thread doing this
+// process' part, once every process has done theirs.
+
+public class MPI_Request
+{
+    // The message for the operation (null if the operation had an error)
+    private MPI_PendingMessage _msg;
+
+    // Is this the sending or the receiving side of the message?
+    private boolean _isSend;
+
+    // A request is active from when it is started until it has been completed
+    // by a wait or test
+    private boolean _active;
+
+    // Set if the operation completed when it was started (or for a
+    // collective, when it finished)
+    private volatile boolean _done;
+
+    // The collective, for a non-blocking collective
+    private MPI_Collective _collective;
+
+    // For a persistent request, the operation, and the message that is reused
+    private boolean _persistent;
+    private MPI_DataConnection _conn;
+    private MPI_DataConnection.MPI_Datatype _datatype;
+    private int _peer;
+    private int _tag;
+    private MPI_Comm _comm;
+    private MPI_PendingMessage _persistentMsg;
+
+    MPI_Request(boolean isSend)
+    {
+        _msg = null;
+        _isSend = isSend;
+        _active = false;
+        _done = false;
+        _persistent = false;
+        _persistentMsg = null;
+        _collective = null;
+    }
+
+    // A non-blocking collective, which is active from the start
+    MPI_Request(MPI_Collective collective)
+    {
+        this(false);
+        _collective = collective;
+        _active = true;
+    }
+
+    // A persistent request, which is inactive until it is started
+    MPI_Request(boolean isSend, MPI_DataConnection conn, MPI_DataConnection.MPI_Datatype datatype,
+                MPI_Proc self, MPI_Proc peer, int peerID, int tag, MPI_Comm comm)
+    {
+        this(isSend);
+        _persistent = true;
+        _conn = conn;
+        _datatype = datatype;
+        _peer = peerID;
+        _tag = tag;
+        _comm = comm;
+        _persistentMsg = isSend ? new MPI_PendingMessage(self, peer, tag, comm) : new MPI_PendingMessage(peer, self, tag, comm);
+    }
+
+    // Called when the operation has been started, with its message
+    public void start(MPI_PendingMessage msg, boolean done)
+    {
+        _msg = msg;
+        _done = done;
+        _active = true;
+    }
+
+    public MPI_PendingMessage message() { return _msg; }
+    public boolean isSend() { return _isSend; }
+    public boolean active() { return _active; }
+    public void setInactive() { _active = false; }
+    public boolean complete() { return _done || (_collective == null && _msg.complete(_isSend)); }
+
+    public MPI_Collective collective() { return _collective; }
+    public void finish() { _done = true; }
+
+    public boolean persistent() { return _persistent; }
+    public MPI_PendingMessage persistentMessage() { return _persistentMsg; }
+    public MPI_DataConnection conn() { return _conn; }
+    public MPI_DataConnection.MPI_Datatype datatype() { return _datatype; }
+    public int peer() { return _peer; }
+    public int tag() { return _tag; }
+    public MPI_Comm comm() { return _comm; }
+}
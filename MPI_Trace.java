@@ -0,0 +1,177 @@
+// The event trace of one process: every send, receive, wait and collective,
+// with its start and end times, the time it spent blocked (for a blocking
+// collective, the time from joining it to the end), and its peer, tag and
+// count.  MPI_World turns this on (see its traceEvents), and writes the
+// traces of all of its processes to a binary file, which MPI_TraceExport
+// turns into Chrome trace JSON for Perfetto or chrome://tracing.
+//
+// The events go into a ring buffer that is allocated up front, so recording
+// one is a few array stores: no allocation, and no lock, as only the process'
+// own thread records.  When the buffer is full the oldest events are
+// overwritten.  The trace must only be written once the process has finished
+// (or at least isn't recording).
+//
+// The file is big-endian (DataOutputStream):
+//   header:  MAGIC (long), VERSION (int), number of processes (int),
+//            the world's start time in nanoseconds (long)
+//   then for each process:
+//            rank (int), number of events (int), number overwritten (long)
+//            and the events, oldest first, each:
+//            start, end, wait (longs, in nanoseconds),
+//            kind, peer, tag, count (ints)
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class MPI_Trace
+{
+    static public final long MAGIC = 0x4a4d504954524331L;   // "JMPITRC1"
+    static public final int VERSION = 1;
+
+    // The kinds of event.  A collective's kind is KIND_COLLECTIVE plus its
+    // MPI_CollectiveType's ordinal, and a non-blocking call (which only
+    // starts the operation) has the NONBLOCKING flag.  Tests, probes, waits
+    // for any request and starts of persistent requests are only seen by the
+    // interceptors (see MPI_Call), as polling with them would flood the trace.
+    static public final int KIND_SEND = 0;
+    static public final int KIND_RECV = 1;
+    static public final int KIND_WAIT = 2;
+    static public final int KIND_TEST = 3;
+    static public final int KIND_WAITANY = 4;
+    static public final int KIND_PROBE = 5;
+    static public final int KIND_START = 6;
+    static public final int KIND_COLLECTIVE = 16;
+    static public final int NONBLOCKING = 0x100;
+
+    static final int TIMES = 3;
+    static final int INTS = 4;
+
+    private int _rank;
+    private int _capacity;
+
+    // The events: start, end and wait times in one array, and the kind, peer,
+    // tag and count in the other
+    private long _times[];
+    private int _ints[];
+
+    // How many events have been recorded (the next goes at this modulo the
+    // capacity)
+    private long _numRecorded;
+
+    MPI_Trace(int rank, int capacity)
+    {
+        _rank = rank;
+        _capacity = capacity;
+        _times = new long[capacity * TIMES];
+        _ints = new int[capacity * INTS];
+        _numRecorded = 0;
+    }
+
+    // Record an event.  The peer is a rank in the world (or the root of a
+    // collective), or -1 if there is none.
+    public void record(int kind, int peer, int tag, int count, long start, long end, long wait)
+    {
+        int i = (int) (_numRecorded % _capacity);
+        _numRecorded++;
+        int t = i * TIMES;
+        _times[t] = start;
+        _times[t + 1] = end;
+        _times[t + 2] = wait;
+        int n = i * INTS;
+        _ints[n] = kind;
+        _ints[n + 1] = peer;
+        _ints[n + 2] = tag;
+        _ints[n + 3] = count;
+    }
+
+    public long numRecorded() { return _numRecorded; }
+
+    // Write this process' part of the file
+    void write(DataOutputStream out) throws IOException
+    {
+        int numEvents = (int) Math.min(_numRecorded, _capacity);
+        long first = _numRecorded - numEvents;
+        out.writeInt(_rank);
+        out.writeInt(numEvents);
+        out.writeLong(first);
+        for (long e = first ; e < _numRecorded ; e++)
+        {
+            int i = (int) (e % _capacity);
+            for (int j = 0 ; j < TIMES ; j++)
+            {
+                out.writeLong(_times[i * TIMES + j]);
+            }
+            for (int j = 0 ; j < INTS ; j++)
+            {
+                out.writeInt(_ints[i * INTS + j]);
+            }
+        }
+    }
+
+    // The name of a kind of event, as the export shows it (the MPI function)
+    static public String kindName(int kind)
+    {
+        int base = kind & ~NONBLOCKING;
+        String name = "UNKNOWN";
+        MPI_Collective.MPI_CollectiveType types[] = MPI_Collective.MPI_CollectiveType.values();
+        if (base == KIND_SEND)
+        {
+            name = "Send";
+        }
+        else if (base == KIND_RECV)
+        {
+            name = "Recv";
+        }
+        else if (base == KIND_WAIT)
+        {
+            name = "Wait";
+        }
+        else if (base == KIND_TEST)
+        {
+            name = "Test";
+        }
+        else if (base == KIND_WAITANY)
+        {
+            name = "Waitany";
+        }
+        else if (base == KIND_PROBE)
+        {
+            name = "Probe";
+        }
+        else if (base == KIND_START)
+        {
+            name = "Start";
+        }
+        else if (base >= KIND_COLLECTIVE && base - KIND_COLLECTIVE < types.length)
+        {
+            name = collectiveName(types[base - KIND_COLLECTIVE]);
+        }
+        return ((kind & NONBLOCKING) != 0) ? "MPI_I" + name.toLowerCase() : "MPI_" + name;
+    }
+
+    static private String collectiveName(MPI_Collective.MPI_CollectiveType type)
+    {
+        switch (type)
+        {
+        case INIT:           return "Init";
+        case FINALIZE:       return "Finalize";
+        case BARRIER:        return "Barrier";
+        case BCAST:          return "Bcast";
+        case REDUCE:         return "Reduce";
+        case SCATTER:        return "Scatter";
+        case GATHER:         return "Gather";
+        case REDUCEALL:      return "Allreduce";
+        case GATHERALL:      return "Allgather";
+        case ALLTOALL:       return "Alltoall";
+        case ALLTOALLV:      return "Alltoallv";
+        case SCATTERV:       return "Scatterv";
+        case GATHERV:        return "Gatherv";
+        case GATHERALLV:     return "Allgatherv";
+        case REDUCE_SCATTER: return "Reduce_scatter";
+        case SCAN:           return "Scan";
+        case EXSCAN:         return "Exscan";
+        case COMM_SPLIT:     return "Comm_split";
+        }
+        return "UNKNOWN";
+    }
+}
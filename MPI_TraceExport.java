@@ -0,0 +1,103 @@
+// Turn a trace file written by MPI_World.writeTrace into Chrome trace JSON,
+// which Perfetto (ui.perfetto.dev) and chrome://tracing open.  Each process
+// is a thread (named "rank <n>") in a single process, and each event is a
+// complete event with its peer, tag, count and time blocked as arguments.
+//
+// Usage: java MPI_TraceExport <trace file> <JSON file>
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+
+public class MPI_TraceExport
+{
+    public static void main(String[] args)
+    {
+        if (args.length != 2)
+        {
+            System.out.println("Usage: java MPI_TraceExport <trace file> <JSON file>");
+            return;
+        }
+        try
+        {
+            toChromeJSON(args[0], args[1]);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not export " + args[0] + ": " + e);
+        }
+    }
+
+    static public void toChromeJSON(String traceFile, String jsonFile) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(traceFile)));
+        Writer out = new BufferedWriter(new FileWriter(jsonFile));
+        try
+        {
+            if (in.readLong() != MPI_Trace.MAGIC)
+            {
+                throw new IOException("not a trace file");
+            }
+            int version = in.readInt();
+            if (version != MPI_Trace.VERSION)
+            {
+                throw new IOException("trace file version " + version + ", but expected " + MPI_Trace.VERSION);
+            }
+            int numProcs = in.readInt();
+            long epoch = in.readLong();
+
+            out.write("{\"displayTimeUnit\":\"ns\",\"traceEvents\":[\n");
+            boolean first = true;
+            for (int p = 0 ; p < numProcs ; p++)
+            {
+                int rank = in.readInt();
+                int numEvents = in.readInt();
+                long overwritten = in.readLong();
+                out.write(first ? "" : ",\n");
+                first = false;
+                out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":" + rank
+                          + ",\"args\":{\"name\":\"rank " + rank + "\"}}");
+                if (overwritten > 0)
+                {
+                    out.write(",\n{\"name\":\"" + overwritten + " earlier events overwritten\",\"ph\":\"i\",\"s\":\"t\",\"pid\":0,\"tid\":"
+                              + rank + ",\"ts\":0}");
+                }
+                for (int e = 0 ; e < numEvents ; e++)
+                {
+                    long start = in.readLong();
+                    long end = in.readLong();
+                    long wait = in.readLong();
+                    int kind = in.readInt();
+                    int peer = in.readInt();
+                    int tag = in.readInt();
+                    int count = in.readInt();
+                    String category = ((kind & ~MPI_Trace.NONBLOCKING) >= MPI_Trace.KIND_COLLECTIVE) ? "collective" : "p2p";
+                    out.write(",\n{\"name\":\"" + MPI_Trace.kindName(kind) + "\",\"cat\":\"" + category
+                              + "\",\"ph\":\"X\",\"pid\":0,\"tid\":" + rank
+                              + ",\"ts\":" + micros(start - epoch) + ",\"dur\":" + micros(end - start)
+                              + ",\"args\":{\"peer\":" + peer + ",\"tag\":" + tag + ",\"count\":" + count
+                              + ",\"wait_us\":" + micros(wait) + "}}");
+                }
+            }
+            out.write("\n]}\n");
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+
+    // Chrome traces are in microseconds; keep the nanoseconds as a fraction
+    static private String micros(long nanos)
+    {
+        long whole = nanos / 1000;
+        long frac = Math.abs(nanos % 1000);
+        String sign = (nanos < 0 && whole == 0) ? "-" : "";
+        return sign + whole + "." + (frac < 100 ? (frac < 10 ? "00" : "0") : "") + frac;
+    }
+}
@@ -1,26 +1,230 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 public class MPI_World
 {
     int _numProcs;
     MPI_Proc _processes[];
 
-    // If there is a collective going on, it will be stored here:
-    MPI_Collective _collective;
+    // The collectives in flight, keyed by communicator context and sequence
+    // number (see MPI_Comm).  Processes add them with putIfAbsent, rather than
+    // under a world-wide lock.
+    ConcurrentHashMap<Long, MPI_Collective> _collectives;
+
+    // The communicator of all of the processes, and the next context for a
+    // new communicator
+    MPI_Comm _commWorld;
+    AtomicInteger _nextContext;
+
+    // Should the processes run on virtual threads rather than platform threads?
+    // If so, this is the builder for them (a Thread.Builder.OfVirtual) and its
+    // 'unstarted' method.
+    boolean _virtualThreads;
+    Object _virtualBuilder;
+    Method _virtualUnstarted;
+
+    // Sends of at most this many bytes are sent eagerly (buffered, so the
+    // sender doesn't wait for the receive).  Larger ones are rendezvous.
+    static public final int DEFAULT_EAGER_LIMIT = 8192;
+    int _eagerLimit;
+
+    // The pools of buffers for eager sends, one for each datatype
+    MPI_BufferPool _bufferPools[];
+
+    // The threads that do the processes' parts of non-blocking collectives.
+    // These block while they wait for each other, so the pool must grow as
+    // needed; idle threads are reused, and don't keep the program alive.
+    ExecutorService _backgroundThreads;
+
+    // The communication metrics, published as JMX MBeans: one for the world
+    // (javaMPI:type=World,world=<id>), and, if registerProcMetrics is called,
+    // one for each process (javaMPI:type=Proc,world=<id>,rank=<rank>).  Each
+    // world in the JVM gets its own id.
+    static private AtomicInteger _nextWorldID = new AtomicInteger(0);
+    int _worldID;
+    MPI_WorldMetrics _metrics;
+    boolean _procMetricsRegistered;
+
+    // How many processes have yet to stop; the last one unregisters the MBeans
+    AtomicInteger _numRunning;
+
+    // The number of events each process keeps in its trace (see MPI_Trace),
+    // or 0 for no tracing, and when the world started
+    int _traceEvents;
+    long _traceEpoch;
+
+    // The interceptors (see MPI_Interceptor), or null if there are none.  The
+    // array is replaced rather than changed, so the processes read it
+    // without a lock.
+    volatile MPI_Interceptor _interceptors[];
+
+    // What makes the processes, if not MPI_ProcFactory's own program
+    MPI_ProcFactory.MPI_ProcMaker _procMaker;
 
     public MPI_World(int numProcs)
+    {
+        this(numProcs, false);
+    }
+
+    public MPI_World(int numProcs, boolean virtualThreads)
+    {
+        this(numProcs, virtualThreads, DEFAULT_EAGER_LIMIT);
+    }
+
+    // Virtual threads are much lighter than platform threads, so a world can have
+    // many more processes.  All of the blocking in MPI_Proc parks (rather than
+    // waiting inside a synchronized block), so it doesn't pin a carrier thread.
+    //
+    // An eager limit of -1 makes every send rendezvous, as MPI_Ssend is.
+    public MPI_World(int numProcs, boolean virtualThreads, int eagerLimit)
+    {
+        this(numProcs, virtualThreads, eagerLimit, 0);
+    }
+
+    // With traceEvents > 0, each process records its last traceEvents events
+    // (sends, receives, waits and collectives), for writeTrace.
+    public MPI_World(int numProcs, boolean virtualThreads, int eagerLimit, int traceEvents)
+    {
+        this(numProcs, virtualThreads, eagerLimit, traceEvents, null);
+    }
+
+    // With a maker, the processes run its program (for programs, such as the
+    // benchmarks, that make their own worlds)
+    public MPI_World(int numProcs, boolean virtualThreads, int eagerLimit, int traceEvents, MPI_ProcFactory.MPI_ProcMaker procMaker)
     {
         _numProcs = numProcs;
+        _procMaker = procMaker;
+        _eagerLimit = eagerLimit;
+        _traceEvents = Math.max(traceEvents, 0);
+        _traceEpoch = System.nanoTime();
+        _interceptors = null;
+        _virtualThreads = virtualThreads;
+        if (virtualThreads)
+        {
+            findVirtualThreads();
+        }
+        MPI_DataConnection.MPI_Datatype datatypes[] = MPI_DataConnection.MPI_Datatype.values();
+        _bufferPools = new MPI_BufferPool[datatypes.length];
+        for (int i = 0 ; i < datatypes.length ; i++)
+        {
+            _bufferPools[i] = new MPI_BufferPool(datatypes[i]);
+        }
+        _backgroundThreads = null;
         _processes = new MPI_Proc[numProcs];
-        _collective = null;
+        _collectives = new ConcurrentHashMap<Long, MPI_Collective>();
+        _commWorld = new MPI_Comm(0, _processes, true);
+        _nextContext = new AtomicInteger(1);
         for (int i = 0 ; i < numProcs; i++)
         {
             _processes[i] = MPI_ProcFactory.getProc(this, i);
         }
+        _worldID = _nextWorldID.getAndIncrement();
+        _metrics = new MPI_WorldMetrics(this);
+        _procMetricsRegistered = false;
+        _numRunning = new AtomicInteger(numProcs);
+        registerMetrics();
         for (int i = 0 ; i < numProcs; i++)
         {
             _processes[i].start();
         }
     }
 
+    ////////////////////////////////////////////////////////////////////
+    // The JMX MBeans.  Only the world's is registered up front, as registering
+    // one for each of many processes is slow; registerProcMetrics adds them.
+    // They are all unregistered when the last process stops, so a program
+    // that makes many worlds doesn't keep them all (and their processes)
+    // alive; the numbers can still be read through metrics().
+    private ObjectName worldName() throws JMException
+    {
+        return new ObjectName("javaMPI:type=World,world=" + _worldID);
+    }
+
+    private ObjectName procName(int rank) throws JMException
+    {
+        return new ObjectName("javaMPI:type=Proc,world=" + _worldID + ",rank=" + rank);
+    }
+
+    private void registerMetrics()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            server.registerMBean(_metrics, worldName());
+        }
+        catch (JMException e)
+        {
+            error(-1, "Could not register the metrics MBean: " + e);
+        }
+    }
+
+    // Register an MBean for each process, too
+    public synchronized void registerProcMetrics()
+    {
+        if (_procMetricsRegistered || _numRunning.get() == 0)
+        {
+            return;
+        }
+        _procMetricsRegistered = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            for (int i = 0 ; i < _numProcs; i++)
+            {
+                server.registerMBean(_processes[i].metrics(), procName(i));
+            }
+        }
+        catch (JMException e)
+        {
+            error(-1, "Could not register the process metrics MBeans: " + e);
+        }
+    }
+
+    // A process has stopped.  Once they all have, the MBeans go.
+    void procStopped()
+    {
+        if (_numRunning.decrementAndGet() == 0)
+        {
+            unregisterMetrics();
+        }
+    }
+
+    public synchronized void unregisterMetrics()
+    {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try
+        {
+            if (server.isRegistered(worldName()))
+            {
+                server.unregisterMBean(worldName());
+            }
+            for (int i = 0 ; i < _numProcs; i++)
+            {
+                if (server.isRegistered(procName(i)))
+                {
+                    server.unregisterMBean(procName(i));
+                }
+            }
+        }
+        catch (JMException e)
+        {
+            error(-1, "Could not unregister the metrics MBeans: " + e);
+        }
+    }
+
     public void error(int depth, String message)
     {
         if (depth < 0)
@@ -40,6 +244,157 @@ public class MPI_World
         error(2, message);
     }
 
+    // Virtual threads need Java 21, so they are created by reflection.  On an
+    // older JVM we say so, and fall back to platform threads.
+    private void findVirtualThreads()
+    {
+        try
+        {
+            _virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            _virtualUnstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            error(-1, "Virtual threads are not supported by this JVM, so using platform threads");
+            _virtualThreads = false;
+        }
+    }
+
+    // Create the thread that will run a process
+    public Thread newThread(Runnable proc)
+    {
+        if (_virtualThreads)
+        {
+            try
+            {
+                return (Thread) _virtualUnstarted.invoke(_virtualBuilder, proc);
+            }
+            catch (ReflectiveOperationException e)
+            {
+                error(-1, "Could not create a virtual thread: " + e);
+            }
+        }
+        return new Thread(proc);
+    }
+
+    // Run a task in the background.  Virtual threads are cheap enough to make
+    // one for each task; platform threads are pooled.
+    public void runInBackground(Runnable task)
+    {
+        if (_virtualThreads)
+        {
+            newThread(task).start();
+            return;
+        }
+        synchronized(this)
+        {
+            if (_backgroundThreads == null)
+            {
+                _backgroundThreads = Executors.newCachedThreadPool(new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+            }
+        }
+        _backgroundThreads.execute(task);
+    }
+
+    public boolean virtualThreads() { return _virtualThreads; }
+    public int eagerLimit() { return _eagerLimit; }
+    public MPI_WorldMetrics metrics() { return _metrics; }
+    public int traceEvents() { return _traceEvents; }
+    public MPI_ProcFactory.MPI_ProcMaker procMaker() { return _procMaker; }
+
+    ////////////////////////////////////////////////////////////////////
+    // The interceptors.  They may be added and removed while the processes
+    // run; a call in progress finishes with the ones it started with.
+    public synchronized void addInterceptor(MPI_Interceptor interceptor)
+    {
+        int len = (_interceptors == null) ? 0 : _interceptors.length;
+        MPI_Interceptor interceptors[] = new MPI_Interceptor[len + 1];
+        for (int i = 0 ; i < len ; i++)
+        {
+            interceptors[i] = _interceptors[i];
+        }
+        interceptors[len] = interceptor;
+        _interceptors = interceptors;
+    }
+
+    public synchronized void removeInterceptor(MPI_Interceptor interceptor)
+    {
+        if (_interceptors == null)
+        {
+            return;
+        }
+        int len = 0;
+        MPI_Interceptor interceptors[] = new MPI_Interceptor[_interceptors.length];
+        for (int i = 0 ; i < _interceptors.length ; i++)
+        {
+            if (_interceptors[i] != interceptor)
+            {
+                interceptors[len++] = _interceptors[i];
+            }
+        }
+        if (len == _interceptors.length)
+        {
+            return;
+        }
+        _interceptors = (len == 0) ? null : Arrays.copyOf(interceptors, len);
+    }
+
+    public MPI_Interceptor[] interceptors() { return _interceptors; }
+
+    // Write the processes' traces to a file (see MPI_Trace for the format, and
+    // MPI_TraceExport to turn it into Chrome trace JSON).  The processes
+    // record their traces without locks, so this is refused until they have
+    // all stopped (which also makes their last events visible here).
+    public boolean writeTrace(String file)
+    {
+        if (_traceEvents == 0)
+        {
+            error(-1, "Tracing is not on for this world");
+            return false;
+        }
+        int running = _numRunning.get();
+        if (running > 0)
+        {
+            error(-1, "The trace can only be written once the processes have stopped, but " + running + " of them are still running");
+            return false;
+        }
+        try
+        {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            try
+            {
+                out.writeLong(MPI_Trace.MAGIC);
+                out.writeInt(MPI_Trace.VERSION);
+                out.writeInt(_numProcs);
+                out.writeLong(_traceEpoch);
+                for (int i = 0 ; i < _numProcs; i++)
+                {
+                    _processes[i].trace().write(out);
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch (IOException e)
+        {
+            error(-1, "Could not write the trace to " + file + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+    public MPI_BufferPool bufferPool(MPI_DataConnection.MPI_Datatype datatype) { return _bufferPools[datatype.ordinal()]; }
+
     public MPI_Proc findProc(int ID)
     {
         if (ID < 0 || ID >= _numProcs)
@@ -57,8 +412,22 @@ public class MPI_World
         {
             _processes[i].status(false);
         }
+        for (int i = 0 ; i < _bufferPools.length ; i++)
+        {
+            _bufferPools[i].status();
+        }
     }
 
-    public void setCollective(MPI_Collective collective) { _collective = collective; }
-    public MPI_Collective collective() { return _collective; }
+    public MPI_Comm commWorld() { return _commWorld; }
+    public int newContext() { return _nextContext.getAndIncrement(); }
+
+    // Find a collective in flight, or add one (returning the one that is
+    // there if another process got in first)
+    public MPI_Collective findCollective(long key) { return _collectives.get(key); }
+    public MPI_Collective addCollective(long key, MPI_Collective collective)
+    {
+        MPI_Collective existing = _collectives.putIfAbsent(key, collective);
+        return (existing == null) ? collective : existing;
+    }
+    public void removeCollective(long key, MPI_Collective collective) { _collectives.remove(key, collective); }
 }
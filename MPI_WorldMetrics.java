@@ -0,0 +1,171 @@
+// The communication metrics of a whole world: the sums of its processes'
+// counters (see MPI_Metrics), and their spread over the ranks, so a hot pair
+// of processes or an imbalance shows up without a profiler.  Nothing here is
+// counted; it is all worked out from the processes when it is read.
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class MPI_WorldMetrics implements MPI_WorldMetricsMXBean
+{
+    // How many pairs getHottestPairs lists
+    static public final int NUM_HOTTEST_PAIRS = 10;
+
+    private MPI_World _world;
+
+    MPI_WorldMetrics(MPI_World world)
+    {
+        _world = world;
+    }
+
+    public int getNumProcs() { return _world.numProcs(); }
+
+    public Map<String, Long> getMessagesSent()
+    {
+        Map<String, Long> total = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            addInto(total, metrics(i).getMessagesSent());
+        }
+        return total;
+    }
+
+    public Map<String, Long> getBytesSent()
+    {
+        Map<String, Long> total = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            addInto(total, metrics(i).getBytesSent());
+        }
+        return total;
+    }
+
+    public Map<String, Long> getMessagesReceived()
+    {
+        Map<String, Long> total = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            addInto(total, metrics(i).getMessagesReceived());
+        }
+        return total;
+    }
+
+    public Map<String, Long> getBytesReceived()
+    {
+        Map<String, Long> total = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            addInto(total, metrics(i).getBytesReceived());
+        }
+        return total;
+    }
+
+    // Every member of a collective counts it, so these are the collectives
+    // started by each process, added up
+    public Map<String, Long> getCollectives()
+    {
+        Map<String, Long> total = new LinkedHashMap<String, Long>();
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            addInto(total, metrics(i).getCollectives());
+        }
+        return total;
+    }
+
+    public long[] getBytesSentByRank()
+    {
+        long bytes[] = new long[_world.numProcs()];
+        for (int i = 0 ; i < bytes.length ; i++)
+        {
+            bytes[i] = metrics(i).sumBytesSent();
+        }
+        return bytes;
+    }
+
+    public long[] getBytesReceivedByRank()
+    {
+        long bytes[] = new long[_world.numProcs()];
+        for (int i = 0 ; i < bytes.length ; i++)
+        {
+            bytes[i] = metrics(i).sumBytesReceived();
+        }
+        return bytes;
+    }
+
+    public long[] getBlockedNanosByRank()
+    {
+        long nanos[] = new long[_world.numProcs()];
+        for (int i = 0 ; i < nanos.length ; i++)
+        {
+            nanos[i] = metrics(i).sumBlockedNanos();
+        }
+        return nanos;
+    }
+
+    public int[] getUnexpectedQueueHighWaterByRank()
+    {
+        int depths[] = new int[_world.numProcs()];
+        for (int i = 0 ; i < depths.length ; i++)
+        {
+            depths[i] = metrics(i).getUnexpectedQueueHighWater();
+        }
+        return depths;
+    }
+
+    public String[] getHottestPairs()
+    {
+        // Each pair is {bytes, source, destination}
+        List<long[]> pairs = new ArrayList<long[]>();
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            long bytesSentTo[] = metrics(i).getBytesSentTo();
+            for (int j = 0 ; j < bytesSentTo.length ; j++)
+            {
+                if (bytesSentTo[j] > 0)
+                {
+                    pairs.add(new long[] { bytesSentTo[j], i, j });
+                }
+            }
+        }
+        Collections.sort(pairs, new Comparator<long[]>()
+        {
+            public int compare(long a[], long b[])
+            {
+                return Long.compare(b[0], a[0]);
+            }
+        });
+        String hottest[] = new String[Math.min(pairs.size(), NUM_HOTTEST_PAIRS)];
+        for (int i = 0 ; i < hottest.length ; i++)
+        {
+            long pair[] = pairs.get(i);
+            hottest[i] = pair[1] + " -> " + pair[2] + ": " + pair[0];
+        }
+        return hottest;
+    }
+
+    public void reset()
+    {
+        for (int i = 0 ; i < _world.numProcs() ; i++)
+        {
+            metrics(i).reset();
+        }
+    }
+
+    private MPI_Metrics metrics(int rank)
+    {
+        return _world.findProc(rank).metrics();
+    }
+
+    static private void addInto(Map<String, Long> total, Map<String, Long> part)
+    {
+        for (Map.Entry<String, Long> entry : part.entrySet())
+        {
+            Long sum = total.get(entry.getKey());
+            total.put(entry.getKey(), (sum == null) ? entry.getValue() : sum + entry.getValue());
+        }
+    }
+}
@@ -0,0 +1,27 @@
+// The communication metrics of a whole world, as published over JMX (see
+// MPI_WorldMetrics).  The totals are summed over the processes when they are
+// read, and the arrays are indexed by rank, to show up any imbalance.
+
+import java.util.Map;
+
+public interface MPI_WorldMetricsMXBean
+{
+    int getNumProcs();
+
+    Map<String, Long> getMessagesSent();
+    Map<String, Long> getBytesSent();
+    Map<String, Long> getMessagesReceived();
+    Map<String, Long> getBytesReceived();
+    Map<String, Long> getCollectives();
+
+    long[] getBytesSentByRank();
+    long[] getBytesReceivedByRank();
+    long[] getBlockedNanosByRank();
+    int[] getUnexpectedQueueHighWaterByRank();
+
+    // The pairs of processes with the most traffic, busiest first, as
+    // "source -> destination: bytes"
+    String[] getHottestPairs();
+
+    void reset();
+}
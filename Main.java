@@ -2,7 +2,6 @@
 // Make MPI_ANY_SOURCE, MPI_ANY_TAG, etc
 // What do the MPI routines return (an integer)?
 // If there is a tag mismatch, don't show as a deadlock, but as a suspected tag mismatch
-// probes
 // Good way to terminate program
 import java.util.Scanner;
 
@@ -13,10 +12,45 @@ public class Main
     {
         Scanner reader = new Scanner(System.in);
 
+        // Run with '-virtual' to put the processes on virtual threads, with
+        // '-eager <bytes>' to change the largest message that is sent eagerly,
+        // with '-trace <events>' to have each process keep a trace of its
+        // last that many events (written to javaMPI.trace by entering 2, once
+        // the processes have stopped), and
+        // with '-procmetrics' to publish each process' metrics over JMX, not
+        // just the world's
+        boolean virtualThreads = false;
+        boolean procMetrics = false;
+        int eagerLimit = MPI_World.DEFAULT_EAGER_LIMIT;
+        int traceEvents = 0;
+        for (int i = 0 ; i < args.length ; i++)
+        {
+            if (args[i].equals("-virtual"))
+            {
+                virtualThreads = true;
+            }
+            else if (args[i].equals("-eager") && i + 1 < args.length)
+            {
+                eagerLimit = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-trace") && i + 1 < args.length)
+            {
+                traceEvents = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("-procmetrics"))
+            {
+                procMetrics = true;
+            }
+        }
+
         System.out.println("How many processors? ");
         int num = reader.nextInt();
 
-        MPI_World world = new MPI_World(num);
+        MPI_World world = new MPI_World(num, virtualThreads, eagerLimit, traceEvents);
+        if (procMetrics)
+        {
+            world.registerProcMetrics();
+        }
 
         while (true)
         {
@@ -30,6 +64,10 @@ public class Main
             {
                 world.status();
             }
+            if (num == 2 && world.writeTrace("javaMPI.trace"))
+            {
+                System.out.println("Trace written to javaMPI.trace (see MPI_TraceExport)");
+            }
         }
     }
 }
@@ -0,0 +1,469 @@
+// The benchmarks: point-to-point latency, bandwidth and message matching,
+// and how the collectives scale with the number of ranks.  Each benchmark
+// runs, for each set of parameters, on a world of its own (see
+// MPI_BenchmarkTrial), as JMH would run it: a few warmup iterations and then
+// the measured ones, each running batches of operations for the iteration
+// time.  The score is the mean of the measured iterations, with the error
+// of its 99.9% confidence interval.  The results are printed, and written
+// to a JSON file in the format of JMH's, so JMH's tools can read them.  The
+// bytes allocated per operation, by all of the ranks, are a secondary metric
+// (gc.alloc.rate.norm, as JMH's GC profiler calls it).
+//
+//   pingPong    one-way latency between ranks 0 and 1 (us/op), for each of
+//               -pingsizes and each of -pingranks; the other ranks wait in a
+//               barrier meanwhile, so the cost of waking ranks that aren't
+//               the message's shows
+//   persistent  time for 2 ranks to exchange messages (us/op) with persistent
+//               requests (MPI_Startall and MPI_Waitall), for each of -pingsizes;
+//               this should allocate nothing per operation
+//   stream      bandwidth from rank 0 to rank 1 (MB/s), for each datatype and
+//               each of -sizes; messages up to 64 KB are sent in a window of 16
+//   unexpected  time for a receive to find its message (us/op) among the
+//               unexpected messages already queued, for each of -depths
+//   barrier, bcast, reduce, allreduce, allgather, scatter
+//               time for one call (us/op), for each of -ranks, on -count ints
+//               per rank, with rank 0 as the root
+//
+// Usage: java MPI_Benchmark [options]     (benchmarks/run.sh builds and runs it)
+//   -b <regex>        run only the benchmarks whose names match
+//   -wi <n>           warmup iterations (2)
+//   -i <n>            measured iterations (5)
+//   -r <ms>           time of each iteration (200)
+//   -pingsizes <list> message sizes in bytes for pingPong (8,1024,65536)
+//   -pingranks <list> numbers of ranks for pingPong (2,256)
+//   -sizes <list>     message sizes in bytes for stream (1,64,4096,262144,16777216,67108864)
+//   -depths <list>    queue depths for unexpected (1,10,100,1000,10000,100000)
+//   -ranks <list>     numbers of ranks for the collectives (2,4,16,64,256,1024)
+//   -count <n>        ints per rank for the collectives (16)
+//   -virtual          put the processes on virtual threads
+//   -rff <file>       the JSON file (MPI_Benchmark.json)
+// Sizes may end in K or M.
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+public class MPI_Benchmark
+{
+    // The largest batch; a batch is doubled until it takes a tenth of the iteration time
+    static final int MAX_BATCH = 1 << 20;
+    static final int STREAM_WINDOW = 16;
+    static final long STREAM_WINDOW_LIMIT = 64 * 1024;
+
+    private int _warmupIterations = 2;
+    private int _iterations = 5;
+    private long _iterationMillis = 200;
+    private boolean _virtualThreads = false;
+
+    // The allocation per operation of the last iteration
+    private double _allocation;
+
+    // The score of each trial (a string of JSON), in the order they ran
+    private List<String> _results = new ArrayList<String>();
+
+    public static void main(String[] args)
+    {
+        MPI_Benchmark benchmark = new MPI_Benchmark();
+        Pattern include = Pattern.compile(".*");
+        String pingSizes = "8,1024,65536";
+        String pingRanks = "2,256";
+        String sizes = "1,64,4096,262144,16777216,67108864";
+        String depths = "1,10,100,1000,10000,100000";
+        String ranks = "2,4,16,64,256,1024";
+        int count = 16;
+        String resultFile = "MPI_Benchmark.json";
+        for (int i = 0 ; i < args.length ; i++)
+        {
+            String arg = args[i];
+            if (arg.equals("-virtual"))
+            {
+                benchmark._virtualThreads = true;
+                continue;
+            }
+            if (i + 1 >= args.length)
+            {
+                System.out.println("Missing the value of " + arg + " (see MPI_Benchmark.java for the options)");
+                return;
+            }
+            String value = args[++i];
+            if (arg.equals("-b"))
+            {
+                include = Pattern.compile(value, Pattern.CASE_INSENSITIVE);
+            }
+            else if (arg.equals("-wi"))
+            {
+                benchmark._warmupIterations = Integer.parseInt(value);
+            }
+            else if (arg.equals("-i"))
+            {
+                benchmark._iterations = Math.max(Integer.parseInt(value), 1);
+            }
+            else if (arg.equals("-r"))
+            {
+                benchmark._iterationMillis = Long.parseLong(value);
+            }
+            else if (arg.equals("-pingsizes"))
+            {
+                pingSizes = value;
+            }
+            else if (arg.equals("-pingranks"))
+            {
+                pingRanks = value;
+            }
+            else if (arg.equals("-sizes"))
+            {
+                sizes = value;
+            }
+            else if (arg.equals("-depths"))
+            {
+                depths = value;
+            }
+            else if (arg.equals("-ranks"))
+            {
+                ranks = value;
+            }
+            else if (arg.equals("-count"))
+            {
+                count = Integer.parseInt(value);
+            }
+            else if (arg.equals("-rff"))
+            {
+                resultFile = value;
+            }
+            else
+            {
+                System.out.println("Unknown option " + arg + " (see MPI_Benchmark.java for the options)");
+                return;
+            }
+        }
+
+        List<MPI_BenchmarkTrial> trials = new ArrayList<MPI_BenchmarkTrial>();
+        MPI_DataConnection.MPI_Datatype datatypes[] = MPI_DataConnection.MPI_Datatype.values();
+        for (long numProcs : parseList(pingRanks))
+        {
+            for (long bytes : parseList(pingSizes))
+            {
+                trials.add(new MPI_BenchmarkTrial(MPI_BenchmarkTrial.MPI_BenchmarkType.PINGPONG, (int) Math.max(numProcs, 2),
+                                                  MPI_DataConnection.MPI_Datatype.MPI_DT_INT, entries(bytes, MPI_DataConnection.MPI_Datatype.MPI_DT_INT), 1));
+            }
+        }
+        for (long bytes : parseList(pingSizes))
+        {
+            trials.add(new MPI_BenchmarkTrial(MPI_BenchmarkTrial.MPI_BenchmarkType.PERSISTENT, 2, MPI_DataConnection.MPI_Datatype.MPI_DT_INT,
+                                              entries(bytes, MPI_DataConnection.MPI_Datatype.MPI_DT_INT), 1));
+        }
+        for (MPI_DataConnection.MPI_Datatype datatype : datatypes)
+        {
+            for (long bytes : parseList(sizes))
+            {
+                int window = (bytes <= STREAM_WINDOW_LIMIT) ? STREAM_WINDOW : 1;
+                trials.add(new MPI_BenchmarkTrial(MPI_BenchmarkTrial.MPI_BenchmarkType.STREAM, 2, datatype, entries(bytes, datatype), window));
+            }
+        }
+        for (long depth : parseList(depths))
+        {
+            trials.add(new MPI_BenchmarkTrial(MPI_BenchmarkTrial.MPI_BenchmarkType.UNEXPECTED, 2, MPI_DataConnection.MPI_Datatype.MPI_DT_INT, 1, (int) depth));
+        }
+        MPI_BenchmarkTrial.MPI_BenchmarkType collectives[] =
+        {
+            MPI_BenchmarkTrial.MPI_BenchmarkType.BARRIER, MPI_BenchmarkTrial.MPI_BenchmarkType.BCAST,
+            MPI_BenchmarkTrial.MPI_BenchmarkType.REDUCE, MPI_BenchmarkTrial.MPI_BenchmarkType.ALLREDUCE,
+            MPI_BenchmarkTrial.MPI_BenchmarkType.ALLGATHER, MPI_BenchmarkTrial.MPI_BenchmarkType.SCATTER
+        };
+        for (MPI_BenchmarkTrial.MPI_BenchmarkType type : collectives)
+        {
+            for (long numProcs : parseList(ranks))
+            {
+                trials.add(new MPI_BenchmarkTrial(type, (int) numProcs, MPI_DataConnection.MPI_Datatype.MPI_DT_INT, count, 1));
+            }
+        }
+
+        try
+        {
+            for (MPI_BenchmarkTrial trial : trials)
+            {
+                if (include.matcher(trial.name()).find())
+                {
+                    benchmark.run(trial);
+                }
+            }
+            benchmark.writeResults(resultFile);
+            System.out.println("Results written to " + resultFile);
+        }
+        catch (InterruptedException e)
+        {
+            System.out.println("Interrupted: " + e.getMessage());
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write " + resultFile + ": " + e);
+        }
+        System.exit(0);
+    }
+
+    // A comma separated list of numbers, each of which may end in K or M
+    static private long[] parseList(String list)
+    {
+        String items[] = list.split(",");
+        long values[] = new long[items.length];
+        for (int i = 0 ; i < items.length ; i++)
+        {
+            String item = items[i].trim().toUpperCase();
+            long scale = 1;
+            if (item.endsWith("K"))
+            {
+                scale = 1024;
+            }
+            else if (item.endsWith("M"))
+            {
+                scale = 1024 * 1024;
+            }
+            if (scale != 1)
+            {
+                item = item.substring(0, item.length() - 1);
+            }
+            values[i] = Long.parseLong(item) * scale;
+        }
+        return values;
+    }
+
+    // The number of entries of a message of 'bytes' (at least one)
+    static private int entries(long bytes, MPI_DataConnection.MPI_Datatype datatype)
+    {
+        return (int) Math.max(bytes / MPI_BenchmarkTrial.entryBytes(datatype), 1);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Running a trial
+
+    private void run(MPI_BenchmarkTrial trial) throws InterruptedException
+    {
+        System.out.println("# Benchmark: MPI_Benchmark." + trial.name() + " " + trial.params());
+        long iterationNanos = _iterationMillis * 1000000L;
+        trial.start(_virtualThreads);
+
+        // Find the batch size, which also warms up.  This goes by the time the
+        // processes measured, rather than the time the batch took, which with
+        // many ranks is mostly the barrier that starts it.
+        int batch = 1;
+        long nanos = trial.runBatch(batch);
+        while (nanos < iterationNanos / 10 && batch < MAX_BATCH)
+        {
+            batch *= 2;
+            nanos = trial.runBatch(batch);
+        }
+
+        for (int i = 0 ; i < _warmupIterations ; i++)
+        {
+            double score = iteration(trial, batch, iterationNanos);
+            System.out.println("# Warmup Iteration " + pad(i + 1, 3) + ": " + format(score) + " " + trial.unit());
+        }
+        double scores[] = new double[_iterations];
+        double allocations[] = new double[_iterations];
+        for (int i = 0 ; i < _iterations ; i++)
+        {
+            scores[i] = iteration(trial, batch, iterationNanos);
+            allocations[i] = _allocation;
+            System.out.println("Iteration " + pad(i + 1, 3) + ": " + format(scores[i]) + " " + trial.unit()
+                               + ", " + format(allocations[i]) + " B/op allocated");
+        }
+        trial.stop();
+
+        double mean = mean(scores);
+        double error = error(scores);
+        System.out.println("Result \"MPI_Benchmark." + trial.name() + "\": " + format(mean) + " +-(99.9%) " + format(error) + " " + trial.unit());
+        System.out.println("Result \"MPI_Benchmark." + trial.name() + ":gc.alloc.rate.norm\": " + format(mean(allocations)) + " +-(99.9%) "
+                           + format(error(allocations)) + " B/op");
+        System.out.println();
+        _results.add(resultJSON(trial, scores, allocations));
+    }
+
+    // Run batches for the iteration time, and return the score (and set
+    // _allocation to the bytes allocated per operation)
+    private double iteration(MPI_BenchmarkTrial trial, int batch, long iterationNanos) throws InterruptedException
+    {
+        long nanos = 0;
+        long bytes = 0;
+        long ops = 0;
+        long start = System.nanoTime();
+        while (ops == 0 || System.nanoTime() - start < iterationNanos)
+        {
+            nanos += trial.runBatch(batch);
+            long allocated = trial.allocatedBytes();
+            bytes = (allocated < 0 || bytes < 0) ? -1 : bytes + allocated;
+            ops += batch;
+        }
+        _allocation = trial.allocationScore(bytes, ops);
+        return trial.score(nanos, ops);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Statistics
+
+    static private double mean(double scores[])
+    {
+        double sum = 0;
+        for (double score : scores)
+        {
+            sum += score;
+        }
+        return sum / scores.length;
+    }
+
+    // The half width of the 99.9% confidence interval of the mean, as JMH
+    // reports it (Student's t distribution)
+    static private double error(double scores[])
+    {
+        int n = scores.length;
+        if (n < 2)
+        {
+            return Double.NaN;
+        }
+        double mean = mean(scores);
+        double squares = 0;
+        for (double score : scores)
+        {
+            squares += (score - mean) * (score - mean);
+        }
+        double deviation = Math.sqrt(squares / (n - 1));
+        return studentT999(n - 1) * deviation / Math.sqrt(n);
+    }
+
+    // The 0.9995 quantile of Student's t distribution with that many degrees of freedom
+    static private final double T999[] =
+    {
+        636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+        4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+        3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646
+    };
+
+    static private double studentT999(int degrees)
+    {
+        if (degrees <= T999.length)
+        {
+            return T999[degrees - 1];
+        }
+        return (degrees <= 60) ? 3.460 : (degrees <= 120) ? 3.373 : 3.291;
+    }
+
+    // A percentile of the scores, interpolating between the nearest two
+    static private double percentile(double sorted[], double percent)
+    {
+        double position = percent / 100.0 * (sorted.length - 1);
+        int below = (int) Math.floor(position);
+        int above = Math.min(below + 1, sorted.length - 1);
+        return sorted[below] + (position - below) * (sorted[above] - sorted[below]);
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Output
+
+    static private String format(double value)
+    {
+        return String.format("%.3f", value);
+    }
+
+    static private String pad(int value, int width)
+    {
+        String s = "" + value;
+        while (s.length() < width)
+        {
+            s = " " + s;
+        }
+        return s;
+    }
+
+    static private String number(double value)
+    {
+        return Double.isNaN(value) ? "\"NaN\"" : "" + value;
+    }
+
+    private String resultJSON(MPI_BenchmarkTrial trial, double scores[], double allocations[])
+    {
+        StringBuilder json = new StringBuilder();
+        json.append("    {\n");
+        json.append("        \"benchmark\" : \"MPI_Benchmark.").append(trial.name()).append("\",\n");
+        json.append("        \"mode\" : \"").append(trial.mode()).append("\",\n");
+        json.append("        \"threads\" : 1,\n");
+        json.append("        \"forks\" : 0,\n");
+        json.append("        \"jdkVersion\" : \"").append(System.getProperty("java.version")).append("\",\n");
+        json.append("        \"vmName\" : \"").append(System.getProperty("java.vm.name")).append("\",\n");
+        json.append("        \"warmupIterations\" : ").append(_warmupIterations).append(",\n");
+        json.append("        \"warmupTime\" : \"").append(_iterationMillis).append(" ms\",\n");
+        json.append("        \"measurementIterations\" : ").append(_iterations).append(",\n");
+        json.append("        \"measurementTime\" : \"").append(_iterationMillis).append(" ms\",\n");
+        json.append("        \"params\" : {\n");
+        boolean first = true;
+        for (Map.Entry<String, String> param : trial.params().entrySet())
+        {
+            json.append(first ? "" : ",\n");
+            first = false;
+            json.append("            \"").append(param.getKey()).append("\" : \"").append(param.getValue()).append("\"");
+        }
+        json.append("\n        },\n");
+        json.append("        \"primaryMetric\" : ");
+        metricJSON(json, "        ", scores, trial.unit());
+        json.append(",\n");
+        json.append("        \"secondaryMetrics\" : {\n");
+        json.append("            \"gc.alloc.rate.norm\" : ");
+        metricJSON(json, "            ", allocations, "B/op");
+        json.append("\n        }\n");
+        json.append("    }");
+        return json.toString();
+    }
+
+    // One metric's scores, as JMH writes them, with each line after the first
+    // starting with 'indent'
+    static private void metricJSON(StringBuilder json, String indent, double scores[], String unit)
+    {
+        double mean = mean(scores);
+        double error = error(scores);
+        double sorted[] = scores.clone();
+        Arrays.sort(sorted);
+        double percents[] = { 0.0, 50.0, 90.0, 95.0, 99.0, 99.9, 99.99, 99.999, 99.9999, 100.0 };
+        json.append("{\n");
+        json.append(indent).append("    \"score\" : ").append(number(mean)).append(",\n");
+        json.append(indent).append("    \"scoreError\" : ").append(number(error)).append(",\n");
+        json.append(indent).append("    \"scoreConfidence\" : [ ").append(number(mean - error)).append(", ").append(number(mean + error)).append(" ],\n");
+        json.append(indent).append("    \"scorePercentiles\" : {\n");
+        for (int i = 0 ; i < percents.length ; i++)
+        {
+            json.append(indent).append("        \"").append(percents[i]).append("\" : ").append(number(percentile(sorted, percents[i])));
+            json.append((i + 1 < percents.length) ? ",\n" : "\n");
+        }
+        json.append(indent).append("    },\n");
+        json.append(indent).append("    \"scoreUnit\" : \"").append(unit).append("\",\n");
+        json.append(indent).append("    \"rawData\" : [\n").append(indent).append("        [\n");
+        for (int i = 0 ; i < scores.length ; i++)
+        {
+            json.append(indent).append("            ").append(number(scores[i])).append((i + 1 < scores.length) ? ",\n" : "\n");
+        }
+        json.append(indent).append("        ]\n").append(indent).append("    ]\n");
+        json.append(indent).append("}");
+    }
+
+    private void writeResults(String file) throws IOException
+    {
+        Writer out = new BufferedWriter(new FileWriter(file));
+        try
+        {
+            out.write("[\n");
+            for (int i = 0 ; i < _results.size() ; i++)
+            {
+                out.write(_results.get(i));
+                out.write((i + 1 < _results.size()) ? ",\n" : "\n");
+            }
+            out.write("]\n");
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+// The program the benchmarks' processes run: each batch of its trial (see
+// MPI_BenchmarkTrial) starts with a barrier, so the processes start
+// together, and each process then times its part of the batch, and counts
+// the bytes its thread allocates during it.
+
+import java.lang.management.ManagementFactory;
+
+public class MPI_BenchmarkProc extends MPI_Proc
+{
+    static final int TAG = 1;
+    static final int ACK_TAG = 2;
+
+    static private final com.sun.management.ThreadMXBean THREADS =
+        (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private MPI_BenchmarkTrial _trial;
+
+    // The buffers, allocated once for the whole trial
+    private Object _sendData;
+    private Object _recvData[];
+    private int _ack[];
+    private MPI_Request _requests[];
+
+    // The persistent receive and send of PERSISTENT, made once and started for each operation
+    private MPI_Request _persistent[];
+
+    public MPI_BenchmarkProc(MPI_World world, int rank, MPI_BenchmarkTrial trial)
+    {
+        super(world, rank);
+        _trial = trial;
+    }
+
+    public void exec(int argc, String argv[]) throws InterruptedException
+    {
+        MPI_Init(argc, argv);
+        int rank = MPI_Comm_rank(MPI_COMM_WORLD);
+        int size = MPI_Comm_size(MPI_COMM_WORLD);
+        allocate(rank, size);
+
+        int ops;
+        while ((ops = _trial.awaitBatch()) > 0)
+        {
+            MPI_Barrier();
+            long allocated = allocatedBytes();
+            long nanos = runBatch(rank, ops);
+            _trial.batchDone(rank, nanos, (allocated < 0) ? -1 : allocatedBytes() - allocated);
+        }
+
+        MPI_Finalize();
+        _trial.finished();
+    }
+
+    private void allocate(int rank, int size)
+    {
+        MPI_DataConnection.MPI_Datatype datatype = _trial.datatype();
+        int count = _trial.count();
+        int window = (_trial.type() == MPI_BenchmarkTrial.MPI_BenchmarkType.STREAM) ? _trial.depth() : 1;
+        int sendCount = count;
+        int recvCount = count;
+        switch (_trial.type())
+        {
+        case ALLGATHER:
+            recvCount = count * size;
+            break;
+        case SCATTER:
+            sendCount = count * size;
+            break;
+        case UNEXPECTED:
+            sendCount = recvCount = 1;
+            break;
+        default:
+            break;
+        }
+        _sendData = newData(datatype, sendCount);
+        _recvData = new Object[window];
+        for (int i = 0 ; i < window ; i++)
+        {
+            _recvData[i] = newData(datatype, recvCount);
+        }
+        _ack = new int[1];
+        _requests = new MPI_Request[window];
+        if (_trial.type() == MPI_BenchmarkTrial.MPI_BenchmarkType.PERSISTENT)
+        {
+            _persistent = new MPI_Request[2];
+            _persistent[0] = recvInit(_recvData[0], count, 1 - rank, TAG);
+            _persistent[1] = sendInit(_sendData, count, 1 - rank, TAG);
+        }
+    }
+
+    // The bytes this thread has allocated so far, or -1 if the JVM can't say
+    static private long allocatedBytes()
+    {
+        if (!THREADS.isThreadAllocatedMemorySupported() || !THREADS.isThreadAllocatedMemoryEnabled())
+        {
+            return -1;
+        }
+        return THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    static private Object newData(MPI_DataConnection.MPI_Datatype datatype, int count)
+    {
+        switch (datatype)
+        {
+        case MPI_DT_INT:
+            int ints[] = new int[count];
+            for (int i = 0 ; i < count ; i++)
+            {
+                ints[i] = i;
+            }
+            return ints;
+        case MPI_DT_DOUBLE:
+            double doubles[] = new double[count];
+            for (int i = 0 ; i < count ; i++)
+            {
+                doubles[i] = i;
+            }
+            return doubles;
+        case MPI_DT_STRING:
+            String strings[] = new String[count];
+            for (int i = 0 ; i < count ; i++)
+            {
+                strings[i] = "abcd";
+            }
+            return strings;
+        }
+        return null;
+    }
+
+    // Run one batch of 'ops' operations, and return how long this process spent on it
+    private long runBatch(int rank, int ops)
+    {
+        switch (_trial.type())
+        {
+        case PINGPONG:   return pingPong(rank, ops);
+        case PERSISTENT: return persistent(ops);
+        case STREAM:     return stream(rank, ops);
+        case UNEXPECTED: return unexpected(rank, ops);
+        default:         return collective(ops);
+        }
+    }
+
+    // Ranks 0 and 1 send the message back and forth, while any others wait
+    // in a barrier, which ranks 0 and 1 join when they are done
+    private long pingPong(int rank, int ops)
+    {
+        if (rank >= 2)
+        {
+            MPI_Barrier();
+            return 0;
+        }
+        int count = _trial.count();
+        int peer = 1 - rank;
+        long start = System.nanoTime();
+        for (int i = 0 ; i < ops ; i++)
+        {
+            if (rank == 0)
+            {
+                send(_sendData, count, peer, TAG);
+                recv(_recvData[0], count, peer, TAG);
+            }
+            else
+            {
+                recv(_recvData[0], count, peer, TAG);
+                send(_sendData, count, peer, TAG);
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        if (_trial.numProcs() > 2)
+        {
+            MPI_Barrier();
+        }
+        return nanos;
+    }
+
+    // Each rank sends a message to the other and receives the other's, with
+    // the persistent requests made by allocate, so nothing is allocated per
+    // operation
+    private long persistent(int ops)
+    {
+        long start = System.nanoTime();
+        for (int i = 0 ; i < ops ; i++)
+        {
+            MPI_Startall(_persistent);
+            MPI_Waitall(_persistent, MPI_STATUSES_IGNORE);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Rank 0 sends a window of messages, which rank 1 receives and then acknowledges
+    private long stream(int rank, int ops)
+    {
+        int count = _trial.count();
+        int window = _trial.depth();
+        long start = System.nanoTime();
+        for (int i = 0 ; i < ops ; i++)
+        {
+            for (int w = 0 ; w < window ; w++)
+            {
+                _requests[w] = (rank == 0) ? isend(_sendData, count, 1, TAG) : irecv(_recvData[w], count, 0, TAG);
+            }
+            MPI_Waitall(_requests, MPI_STATUSES_IGNORE);
+            if (rank == 0)
+            {
+                MPI_Recv(_ack, 1, MPI_INT, 1, ACK_TAG, MPI_COMM_WORLD, MPI_STATUS_IGNORE);
+            }
+            else
+            {
+                MPI_Send(_ack, 1, MPI_INT, 0, ACK_TAG, MPI_COMM_WORLD);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Rank 0 sends 'depth' messages, each with its own tag, which all arrive
+    // before rank 1 receives them, last tag first.  Only the receives are timed.
+    private long unexpected(int rank, int ops)
+    {
+        int depth = _trial.depth();
+        long nanos = 0;
+        for (int i = 0 ; i < ops ; i++)
+        {
+            if (rank == 0)
+            {
+                for (int t = 0 ; t < depth ; t++)
+                {
+                    send(_sendData, 1, 1, t);
+                }
+            }
+            MPI_Barrier();
+            if (rank == 1)
+            {
+                long start = System.nanoTime();
+                for (int t = depth - 1 ; t >= 0 ; t--)
+                {
+                    recv(_recvData[0], 1, 0, t);
+                }
+                nanos += System.nanoTime() - start;
+            }
+            MPI_Barrier();
+        }
+        return nanos;
+    }
+
+    // The collectives are on ints, with rank 0 as the root
+    private long collective(int ops)
+    {
+        int count = _trial.count();
+        int sendData[] = (int[]) _sendData;
+        int recvData[] = (int[]) _recvData[0];
+        long start = System.nanoTime();
+        for (int i = 0 ; i < ops ; i++)
+        {
+            switch (_trial.type())
+            {
+            case BARRIER:
+                MPI_Barrier();
+                break;
+            case BCAST:
+                MPI_Bcast(sendData, count, MPI_INT, 0, MPI_COMM_WORLD);
+                break;
+            case REDUCE:
+                MPI_Reduce(sendData, recvData, count, MPI_INT, MPI_SUM, 0, MPI_COMM_WORLD);
+                break;
+            case ALLREDUCE:
+                MPI_Allreduce(sendData, recvData, count, MPI_INT, MPI_SUM, MPI_COMM_WORLD);
+                break;
+            case ALLGATHER:
+                MPI_Allgather(sendData, count, MPI_INT, recvData, count, MPI_INT, MPI_COMM_WORLD);
+                break;
+            case SCATTER:
+                MPI_Scatter(sendData, count, MPI_INT, recvData, count, MPI_INT, 0, MPI_COMM_WORLD);
+                break;
+            default:
+                break;
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // The point-to-point calls, for whichever datatype the trial has
+
+    private void send(Object data, int count, int dest, int tag)
+    {
+        if (data instanceof int[])
+        {
+            MPI_Send((int[]) data, count, MPI_INT, dest, tag, MPI_COMM_WORLD);
+        }
+        else if (data instanceof double[])
+        {
+            MPI_Send((double[]) data, count, MPI_DOUBLE, dest, tag, MPI_COMM_WORLD);
+        }
+        else
+        {
+            MPI_Send((String[]) data, count, MPI_STRING, dest, tag, MPI_COMM_WORLD);
+        }
+    }
+
+    private void recv(Object data, int count, int src, int tag)
+    {
+        if (data instanceof int[])
+        {
+            MPI_Recv((int[]) data, count, MPI_INT, src, tag, MPI_COMM_WORLD, MPI_STATUS_IGNORE);
+        }
+        else if (data instanceof double[])
+        {
+            MPI_Recv((double[]) data, count, MPI_DOUBLE, src, tag, MPI_COMM_WORLD, MPI_STATUS_IGNORE);
+        }
+        else
+        {
+            MPI_Recv((String[]) data, count, MPI_STRING, src, tag, MPI_COMM_WORLD, MPI_STATUS_IGNORE);
+        }
+    }
+
+    private MPI_Request isend(Object data, int count, int dest, int tag)
+    {
+        if (data instanceof int[])
+        {
+            return MPI_Isend((int[]) data, count, MPI_INT, dest, tag, MPI_COMM_WORLD);
+        }
+        else if (data instanceof double[])
+        {
+            return MPI_Isend((double[]) data, count, MPI_DOUBLE, dest, tag, MPI_COMM_WORLD);
+        }
+        return MPI_Isend((String[]) data, count, MPI_STRING, dest, tag, MPI_COMM_WORLD);
+    }
+
+    private MPI_Request irecv(Object data, int count, int src, int tag)
+    {
+        if (data instanceof int[])
+        {
+            return MPI_Irecv((int[]) data, count, MPI_INT, src, tag, MPI_COMM_WORLD);
+        }
+        else if (data instanceof double[])
+        {
+            return MPI_Irecv((double[]) data, count, MPI_DOUBLE, src, tag, MPI_COMM_WORLD);
+        }
+        return MPI_Irecv((String[]) data, count, MPI_STRING, src, tag, MPI_COMM_WORLD);
+    }
+
+    private MPI_Request sendInit(Object data, int count, int dest, int tag)
+    {
+        if (data instanceof int[])
+        {
+            return MPI_Send_init((int[]) data, count, MPI_INT, dest, tag, MPI_COMM_WORLD);
+        }
+        else if (data instanceof double[])
+        {
+            return MPI_Send_init((double[]) data, count, MPI_DOUBLE, dest, tag, MPI_COMM_WORLD);
+        }
+        return MPI_Send_init((String[]) data, count, MPI_STRING, dest, tag, MPI_COMM_WORLD);
+    }
+
+    private MPI_Request recvInit(Object data, int count, int src, int tag)
+    {
+        if (data instanceof int[])
+        {
+            return MPI_Recv_init((int[]) data, count, MPI_INT, src, tag, MPI_COMM_WORLD);
+        }
+        else if (data instanceof double[])
+        {
+            return MPI_Recv_init((double[]) data, count, MPI_DOUBLE, src, tag, MPI_COMM_WORLD);
+        }
+        return MPI_Recv_init((String[]) data, count, MPI_STRING, src, tag, MPI_COMM_WORLD);
+    }
+}
@@ -0,0 +1,230 @@
+// One benchmark with one set of parameters, run on a world of its own.  The
+// driver (MPI_Benchmark, on the main thread) runs it a batch at a time: it
+// says how many operations the batch has, every process runs them (see
+// MPI_BenchmarkProc) and says how long they took, and the batch's time is
+// the longest of those.  The processes stay up between batches, so the
+// warmup iterations warm up the same world that is measured.  Each process
+// also says how many bytes its thread allocated during the batch, which are
+// added up for the allocation per operation (as JMH's gc.alloc.rate.norm).
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+
+public class MPI_BenchmarkTrial
+{
+    public enum MPI_BenchmarkType
+    {
+        PINGPONG,       // one-way latency of a message sent back and forth between ranks 0 and 1
+        PERSISTENT,     // latency of an exchange between 2 ranks, with persistent requests
+        STREAM,         // bandwidth of a window of messages streamed from rank 0 to rank 1
+        UNEXPECTED,     // time to match a receive against a queue of unexpected messages
+        BARRIER, BCAST, REDUCE, ALLREDUCE, ALLGATHER, SCATTER
+    };
+
+    private MPI_BenchmarkType _type;
+    private int _numProcs;
+    private MPI_DataConnection.MPI_Datatype _datatype;
+
+    // The number of entries in each message (for the collectives, each rank's part)
+    private int _count;
+
+    // The messages sent before they are received (UNEXPECTED), or in flight at
+    // once (STREAM); otherwise 1
+    private int _depth;
+
+    private MPI_World _world;
+    private CyclicBarrier _start, _end;
+    private volatile int _batchSize;
+    private long _nanos[];
+    private long _allocated[];
+    private CountDownLatch _finished;
+
+    public MPI_BenchmarkTrial(MPI_BenchmarkType type, int numProcs, MPI_DataConnection.MPI_Datatype datatype, int count, int depth)
+    {
+        _type = type;
+        _numProcs = numProcs;
+        _datatype = datatype;
+        _count = count;
+        _depth = depth;
+    }
+
+    public MPI_BenchmarkType type() { return _type; }
+    public int numProcs() { return _numProcs; }
+    public MPI_DataConnection.MPI_Datatype datatype() { return _datatype; }
+    public int count() { return _count; }
+    public int depth() { return _depth; }
+
+    // How each entry is counted: as MPI_DataConnection.sizeInBytes does, with
+    // the strings being 4 characters
+    static public int entryBytes(MPI_DataConnection.MPI_Datatype datatype)
+    {
+        switch (datatype)
+        {
+        case MPI_DT_INT:    return 4;
+        case MPI_DT_DOUBLE: return 8;
+        case MPI_DT_STRING: return 8;
+        }
+        return 0;
+    }
+
+    public long messageBytes() { return (long) _count * entryBytes(_datatype); }
+
+    ////////////////////////////////////////////////////////////////////
+    // How the results are named and scored, as JMH would
+
+    public String name()
+    {
+        switch (_type)
+        {
+        case PINGPONG:   return "pingPong";
+        case PERSISTENT: return "persistent";
+        case STREAM:     return "stream";
+        case UNEXPECTED: return "unexpected";
+        case BARRIER:    return "barrier";
+        case BCAST:      return "bcast";
+        case REDUCE:     return "reduce";
+        case ALLREDUCE:  return "allreduce";
+        case ALLGATHER:  return "allgather";
+        case SCATTER:    return "scatter";
+        }
+        return "unknown";
+    }
+
+    public Map<String, String> params()
+    {
+        Map<String, String> params = new LinkedHashMap<String, String>();
+        params.put("ranks", "" + _numProcs);
+        if (_type != MPI_BenchmarkType.BARRIER)
+        {
+            params.put("datatype", MPI_DataConnection.datatypeString(_datatype));
+            params.put("bytes", "" + messageBytes());
+        }
+        if (_type == MPI_BenchmarkType.UNEXPECTED || _type == MPI_BenchmarkType.STREAM)
+        {
+            params.put(_type == MPI_BenchmarkType.UNEXPECTED ? "depth" : "window", "" + _depth);
+        }
+        return params;
+    }
+
+    public boolean throughput() { return _type == MPI_BenchmarkType.STREAM; }
+    public String mode() { return throughput() ? "thrpt" : "avgt"; }
+    public String unit() { return throughput() ? "MB/s" : "us/op"; }
+
+    // The score of 'ops' operations that took 'nanos'.  A ping-pong is two
+    // messages, and an operation of UNEXPECTED is a round of 'depth' receives.
+    public double score(long nanos, long ops)
+    {
+        if (throughput())
+        {
+            return (double) messageBytes() * _depth * ops * 1000.0 / Math.max(nanos, 1);
+        }
+        int perOp = (_type == MPI_BenchmarkType.PINGPONG) ? 2 : (_type == MPI_BenchmarkType.UNEXPECTED) ? _depth : 1;
+        return nanos / 1000.0 / ops / perOp;
+    }
+
+    // The bytes allocated by all of the processes for each of 'ops'
+    // operations, which allocated 'bytes' (NaN if the JVM can't say)
+    public double allocationScore(long bytes, long ops)
+    {
+        return (bytes < 0) ? Double.NaN : (double) bytes / ops;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Run by the driver
+
+    public void start(boolean virtualThreads)
+    {
+        _start = new CyclicBarrier(_numProcs + 1);
+        _end = new CyclicBarrier(_numProcs + 1);
+        _nanos = new long[_numProcs];
+        _allocated = new long[_numProcs];
+        _finished = new CountDownLatch(_numProcs);
+        _batchSize = 0;
+        final MPI_BenchmarkTrial trial = this;
+        _world = new MPI_World(_numProcs, virtualThreads, MPI_World.DEFAULT_EAGER_LIMIT, 0, new MPI_ProcFactory.MPI_ProcMaker()
+        {
+            public MPI_Proc make(MPI_World world, int rank)
+            {
+                return new MPI_BenchmarkProc(world, rank, trial);
+            }
+        });
+    }
+
+    // Run a batch of 'ops' operations, and return how long it took
+    public long runBatch(int ops) throws InterruptedException
+    {
+        _batchSize = ops;
+        await(_start);
+        await(_end);
+        long nanos = 0;
+        for (int i = 0 ; i < _numProcs ; i++)
+        {
+            nanos = Math.max(nanos, _nanos[i]);
+        }
+        return nanos;
+    }
+
+    // The bytes the processes allocated during the last batch, or -1 if the
+    // JVM can't measure it
+    public long allocatedBytes()
+    {
+        long bytes = 0;
+        for (int i = 0 ; i < _numProcs ; i++)
+        {
+            if (_allocated[i] < 0)
+            {
+                return -1;
+            }
+            bytes += _allocated[i];
+        }
+        return bytes;
+    }
+
+    // Let the processes finish, and forget the world
+    public void stop() throws InterruptedException
+    {
+        _batchSize = 0;
+        await(_start);
+        _finished.await();
+        _world.unregisterMetrics();
+        _world = null;
+    }
+
+    ////////////////////////////////////////////////////////////////////
+    // Run by the processes
+
+    // Wait for the next batch, and return its number of operations (0 when
+    // the trial is over)
+    public int awaitBatch() throws InterruptedException
+    {
+        await(_start);
+        return _batchSize;
+    }
+
+    public void batchDone(int rank, long nanos, long allocated) throws InterruptedException
+    {
+        _nanos[rank] = nanos;
+        _allocated[rank] = allocated;
+        await(_end);
+    }
+
+    public void finished()
+    {
+        _finished.countDown();
+    }
+
+    private void await(CyclicBarrier barrier) throws InterruptedException
+    {
+        try
+        {
+            barrier.await();
+        }
+        catch (BrokenBarrierException e)
+        {
+            throw new InterruptedException("benchmark barrier broken");
+        }
+    }
+}
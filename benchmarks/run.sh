@@ -0,0 +1,14 @@
+#!/bin/sh
+# Build the library and the benchmarks, and run them.  The arguments are
+# passed to MPI_Benchmark (see MPI_Benchmark.java for them), e.g.
+#   benchmarks/run.sh -b allreduce -ranks 2,64,1024 -rff allreduce.json
+# Set JAVA_OPTS to give the JVM options (the 64 MB streams need a heap of
+# about 1 GB).
+
+set -e
+root=$(cd "$(dirname "$0")/.." && pwd)
+classes=$(mktemp -d)
+trap 'rm -rf "$classes"' EXIT
+
+javac -nowarn -d "$classes" "$root"/*.java "$root"/benchmarks/*.java
+java ${JAVA_OPTS:--Xmx2g} -cp "$classes" MPI_Benchmark "$@"